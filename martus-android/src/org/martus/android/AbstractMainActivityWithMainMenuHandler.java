@@ -428,6 +428,7 @@ abstract public class AbstractMainActivityWithMainMenuHandler extends AbstractTo
         clearPrefsDir();
         clearFailedBulletinsDir();
         clearCacheDir();
+        AppConfig.getInstance().getSendMetrics().clear();
         final File unsentBulletinsDir = getAppDir();
         final String[] names = unsentBulletinsDir.list(new ZipFileFilter());
         for (String name : names) {
@@ -450,6 +451,7 @@ abstract public class AbstractMainActivityWithMainMenuHandler extends AbstractTo
         File prefsDirFile = new File(getAppDir(), UploadBulletinTask.FAILED_BULLETINS_DIR);
         clearDirectory(prefsDirFile);
         prefsDirFile.delete();
+        AppConfig.getInstance().getSendQueue().clear();
     }
 
     private void removePacketsDir() {
@@ -0,0 +1,78 @@
+package org.martus.android;
+
+import org.martus.common.network.NetworkInterfaceConstants;
+
+/**
+ * Picks the size of the next putBulletinChunk from the round trip times and failures seen so far.
+ * Quick round trips grow the chunk (fewer XML-RPC calls on fast links), slow ones and failures
+ * shrink it (less work lost per failed chunk on flaky links). Sizes stay between MIN_CHUNK_SIZE
+ * and the server's MAXIMUM_CLIENT_MAX_CHUNK_SIZE.
+ *
+ * The last size learned is remembered for the next upload in this process.
+ */
+public class AdaptiveChunkSizer {
+
+    public static final int MIN_CHUNK_SIZE = 16 * 1024;
+    public static final int MAX_CHUNK_SIZE = NetworkInterfaceConstants.MAXIMUM_CLIENT_MAX_CHUNK_SIZE;
+
+    static final long GROW_BELOW_MILLIS = 3000;
+    static final long SHRINK_ABOVE_MILLIS = 15000;
+    static final double MIN_SUCCESS_RATE_TO_GROW = 0.9;
+    private static final double RTT_SMOOTHING = 0.5;
+
+    private static volatile int lastLearnedChunkSize = NetworkInterfaceConstants.CLIENT_MAX_CHUNK_SIZE;
+
+    private int chunkSize;
+    private double smoothedRoundTripMillis = -1;
+    private int successCount;
+    private int failureCount;
+
+    public AdaptiveChunkSizer() {
+        this(lastLearnedChunkSize);
+    }
+
+    AdaptiveChunkSizer(int initialChunkSize) {
+        chunkSize = clamp(initialChunkSize);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void recordSuccess(int bytesSent, long roundTripMillis) {
+        ++successCount;
+        if (smoothedRoundTripMillis < 0)
+            smoothedRoundTripMillis = roundTripMillis;
+        else
+            smoothedRoundTripMillis = RTT_SMOOTHING * roundTripMillis + (1 - RTT_SMOOTHING) * smoothedRoundTripMillis;
+
+        // only grow once a full sized chunk has come back quickly, the last short chunk says nothing
+        boolean isQuick = smoothedRoundTripMillis < GROW_BELOW_MILLIS;
+        if (isQuick && bytesSent >= chunkSize && getSuccessRate() >= MIN_SUCCESS_RATE_TO_GROW)
+            setChunkSize(chunkSize * 2);
+        else if (smoothedRoundTripMillis > SHRINK_ABOVE_MILLIS)
+            setChunkSize(chunkSize / 2);
+    }
+
+    public void recordFailure() {
+        ++failureCount;
+        smoothedRoundTripMillis = -1;
+        setChunkSize(chunkSize / 2);
+    }
+
+    public double getSuccessRate() {
+        int attempts = successCount + failureCount;
+        if (attempts == 0)
+            return 1.0;
+        return (double)successCount / attempts;
+    }
+
+    private void setChunkSize(int newSize) {
+        chunkSize = clamp(newSize);
+        lastLearnedChunkSize = chunkSize;
+    }
+
+    private static int clamp(int size) {
+        return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, size));
+    }
+}
@@ -24,6 +24,8 @@ import java.util.HashMap;
 public class AppConfig {
 
     public static final String LOG_LABEL = "martus";
+    public static final String COMPRESSED_ATTACHMENTS_DIR = "compressed_attachments";
+    public static final String TRANSCODED_ATTACHMENTS_DIR = "transcoded_attachments";
 
     private static AppConfig instance;
     private MobileClientBulletinStore store;
@@ -34,6 +36,11 @@ public class AppConfig {
     private String serverIP;
 	private ClientSideNetworkInterface currentNetworkInterfaceHandler;
 	private MobileClientSideNetworkGateway currentNetworkInterfaceGateway;
+	private BulletinSendQueue sendQueue;
+	private SharedSigner sharedSigner;
+	private AttachmentStager attachmentStager;
+	private SendMetrics sendMetrics;
+	private ResendScheduler resendScheduler;
 	private static HashMap<String, String> langMap;
 
     public static void initInstance(Context context ) {
@@ -68,6 +75,13 @@ public class AppConfig {
             Log.e(LOG_LABEL, "unable to initialize store", e);
         }
 
+        sendQueue = new BulletinSendQueue(getAppDir(context));
+        sharedSigner = new SharedSigner();
+        resendScheduler = new ResendScheduler(sendQueue);
+        sendMetrics = new SendMetrics(getAppDir(context));
+        attachmentStager = new AttachmentStager(new AttachmentCompressor(new File(context.getCacheDir(), COMPRESSED_ATTACHMENTS_DIR)),
+                new ImageAttachmentTranscoder(new File(context.getCacheDir(), TRANSCODED_ATTACHMENTS_DIR)));
+
         store.setTopSectionFieldSpecs(StandardFieldSpecs.getDefaultTopSetionFieldSpecs());
         store.setBottomSectionFieldSpecs(StandardFieldSpecs.getDefaultBottomSectionFieldSpecs());
 
@@ -98,6 +112,26 @@ public class AppConfig {
         return store;
     }
 
+    public BulletinSendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    public SharedSigner getSharedSigner() {
+        return sharedSigner;
+    }
+
+    public ResendScheduler getResendScheduler() {
+        return resendScheduler;
+    }
+
+    public SendMetrics getSendMetrics() {
+        return sendMetrics;
+    }
+
+    public AttachmentStager getAttachmentStager() {
+        return attachmentStager;
+    }
+
 	public File getOrchidDirectory() {
 		return new File(getAppDir(context), BaseActivity.PREFS_DIR);
 	}
@@ -0,0 +1,142 @@
+package org.martus.android;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import android.util.Log;
+
+/**
+ * Gzips attachments that still compress, such as logs, CSVs and documents, before they are
+ * encrypted. Once an attachment is encrypted nothing further down the send path can shrink it.
+ *
+ * Formats that are already compressed are recognised by their leading bytes and left alone.
+ * Anything else is only compressed if a sample from its start shrinks by at least
+ * MIN_SAVING_PERCENT. The recipient gets the attachment with COMPRESSED_SUFFIX added to its name.
+ */
+public class AttachmentCompressor {
+
+    public static final String COMPRESSED_SUFFIX = ".gz";
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int MIN_SAVING_PERCENT = 20;
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final byte[][] COMPRESSED_SIGNATURES = {
+            {(byte)0xFF, (byte)0xD8, (byte)0xFF},               // jpeg
+            {(byte)0x89, 'P', 'N', 'G'},                        // png
+            {'G', 'I', 'F', '8'},                               // gif
+            {'P', 'K', 0x03, 0x04},                             // zip, docx, odt
+            {0x1F, (byte)0x8B},                                 // gzip
+            {'B', 'Z', 'h'},                                    // bzip2
+            {'7', 'z', (byte)0xBC, (byte)0xAF},                 // 7z
+            {'R', 'a', 'r', '!'},                               // rar
+            {'O', 'g', 'g', 'S'},                               // ogg
+            {'I', 'D', '3'},                                    // mp3
+            {0x1A, 0x45, (byte)0xDF, (byte)0xA3},               // webm, mkv
+    };
+    private static final byte[] ISO_MEDIA_BRAND = {'f', 't', 'y', 'p'}; // mp4, 3gp, m4a at offset 4
+
+    private final File workDirectory;
+
+    public AttachmentCompressor(File workDirectory) {
+        this.workDirectory = workDirectory;
+    }
+
+    /**
+     * @return a gzipped copy of attachment in the work directory, or null if it is not worth
+     *         compressing; the caller deletes the copy once it has been encrypted
+     */
+    public File compress(File attachment) throws IOException {
+        byte[] sample = readSample(attachment);
+        if (isAlreadyCompressed(sample) || !isCompressible(sample))
+            return null;
+
+        workDirectory.mkdirs();
+        File compressed = File.createTempFile("attachment", COMPRESSED_SUFFIX, workDirectory);
+        InputStream in = new FileInputStream(attachment);
+        try {
+            OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(compressed), BUFFER_SIZE), BUFFER_SIZE);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            compressed.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+
+        long originalSize = attachment.length();
+        if (compressed.length() * 100 > originalSize * (100 - MIN_SAVING_PERCENT)) {
+            compressed.delete();
+            return null;
+        }
+        Log.i(AppConfig.LOG_LABEL, "compressed attachment " + attachment.getName() + " from " + originalSize +
+                " to " + compressed.length() + " bytes");
+        return compressed;
+    }
+
+    private static byte[] readSample(File attachment) throws IOException {
+        byte[] sample = new byte[(int)Math.min(SAMPLE_SIZE, attachment.length())];
+        InputStream in = new FileInputStream(attachment);
+        try {
+            int offset = 0;
+            int count;
+            while (offset < sample.length && (count = in.read(sample, offset, sample.length - offset)) > 0) {
+                offset += count;
+            }
+        } finally {
+            in.close();
+        }
+        return sample;
+    }
+
+    static boolean isAlreadyCompressed(byte[] sample) {
+        for (byte[] signature : COMPRESSED_SIGNATURES) {
+            if (startsWith(sample, 0, signature))
+                return true;
+        }
+        return startsWith(sample, 4, ISO_MEDIA_BRAND);
+    }
+
+    private static boolean startsWith(byte[] sample, int offset, byte[] signature) {
+        if (sample.length < offset + signature.length)
+            return false;
+        for (int i = 0; i < signature.length; ++i) {
+            if (sample[offset + i] != signature[i])
+                return false;
+        }
+        return true;
+    }
+
+    static boolean isCompressible(byte[] sample) {
+        if (sample.length == 0)
+            return false;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long compressedSize = 0;
+            while (!deflater.finished()) {
+                compressedSize += deflater.deflate(buffer);
+            }
+            return compressedSize * 100 <= sample.length * (100L - MIN_SAVING_PERCENT);
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.martus.android;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.martus.client.bulletinstore.MobileClientBulletinStore;
+import org.martus.common.bulletin.AttachmentProxy;
+import org.martus.common.crypto.MartusSecurity;
+import org.martus.common.crypto.SessionKey;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.packet.AttachmentPacket;
+import org.martus.common.packet.UniversalId;
+
+import android.util.Log;
+
+/**
+ * Encrypts and signs attachment packets into the store's packet database as soon as they are
+ * added to a bulletin, instead of all of them in ZipBulletinTask after Send is pressed. The
+ * bulletin then refers to the staged packets by id, so saving and zipping it only stitches
+ * packets that already exist. On the way, photos can be re-encoded by the ImageAttachmentTranscoder
+ * and text-like attachments compressed by the AttachmentCompressor.
+ *
+ * An attachment that is removed, changed on disk, or still being encrypted when the bulletin is
+ * sent is discarded and encrypted by saveBulletin as before, unless photo metadata has to be
+ * stripped, in which case takeStrippedProxy waits for it instead. Whatever has not been handed to a
+ * bulletin yet is wiped on logout.
+ */
+public class AttachmentStager {
+
+    private final AttachmentCompressor compressor;
+    private final ImageAttachmentTranscoder transcoder;
+    private final ExecutorService worker;
+    private final Map<String, StagedAttachment> staged;
+
+    public AttachmentStager(AttachmentCompressor compressor, ImageAttachmentTranscoder transcoder) {
+        this.compressor = compressor;
+        this.transcoder = transcoder;
+        worker = Executors.newSingleThreadExecutor();
+        staged = new HashMap<String, StagedAttachment>();
+    }
+
+    /**
+     * @param compress true to gzip the attachment first if its contents still compress
+     * @param imagePolicy how to re-encode the attachment first if it is a photo
+     */
+    public synchronized void stage(File attachment, boolean compress, ImageAttachmentPolicy imagePolicy) {
+        discard(attachment.getName());
+        StagedAttachment entry = new StagedAttachment(attachment, compress, imagePolicy);
+        staged.put(attachment.getName(), entry);
+        entry.setFuture(worker.submit(entry));
+    }
+
+    /**
+     * @return a proxy for the staged packet, or null if the attachment has to be encrypted when
+     *         the bulletin is saved
+     */
+    public synchronized AttachmentProxy takeProxy(File attachment) {
+        StagedAttachment entry = staged.remove(attachment.getName());
+        if (null == entry)
+            return null;
+        AttachmentProxy proxy = entry.takeProxyIfReady();
+        if (null == proxy)
+            entry.cancel();
+        return proxy;
+    }
+
+    /**
+     * Like takeProxy, for when the photo metadata must not leave the device. Waits for staging
+     * that is still under way, and stages the attachment again on the calling thread if it was
+     * staged under a policy that kept the metadata or staging failed.
+     *
+     * @param imagePolicy a policy that strips metadata
+     * @return a proxy for the staged packet, or null if the attachment could not be staged, in
+     *         which case a photo must not be attached as it is
+     */
+    public AttachmentProxy takeStrippedProxy(File attachment, boolean compress, ImageAttachmentPolicy imagePolicy) {
+        StagedAttachment entry;
+        synchronized (this) {
+            entry = staged.remove(attachment.getName());
+        }
+        if (null != entry) {
+            if (entry.imagePolicy.shouldStripMetadata()) {
+                entry.await();
+                AttachmentProxy proxy = entry.takeProxyIfReady();
+                if (null != proxy)
+                    return proxy;
+            }
+            entry.cancel();
+        }
+
+        StagedAttachment now = new StagedAttachment(attachment, compress, imagePolicy);
+        now.run();
+        AttachmentProxy proxy = now.takeProxyIfReady();
+        if (null == proxy)
+            now.cancel();
+        return proxy;
+    }
+
+    public synchronized void discard(String attachmentName) {
+        StagedAttachment entry = staged.remove(attachmentName);
+        if (null != entry)
+            entry.cancel();
+    }
+
+    /**
+     * Deletes every packet no bulletin has taken yet, as on logout.
+     */
+    public synchronized void discardAll() {
+        for (StagedAttachment entry : staged.values())
+            entry.cancel();
+        staged.clear();
+    }
+
+    private class StagedAttachment implements Runnable {
+        private final File file;
+        private final boolean compress;
+        private final ImageAttachmentPolicy imagePolicy;
+        private final long length;
+        private final long lastModified;
+        private Future<?> future;
+        private boolean cancelled;
+        private UniversalId uid;
+        private SessionKey sessionKey;
+        private String label;
+
+        StagedAttachment(File file, boolean compress, ImageAttachmentPolicy imagePolicy) {
+            this.file = file;
+            this.compress = compress;
+            this.imagePolicy = imagePolicy;
+            length = file.length();
+            lastModified = file.lastModified();
+        }
+
+        synchronized void setFuture(Future<?> future) {
+            this.future = future;
+        }
+
+        void await() {
+            Future<?> pending;
+            synchronized (this) {
+                pending = future;
+            }
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e(AppConfig.LOG_LABEL, "problem staging attachment " + file.getName(), e);
+            } catch (CancellationException e) {
+                // nothing was staged
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (cancelled)
+                    return;
+            }
+            MobileClientBulletinStore store = AppConfig.getInstance().getStore();
+            SharedSigner sharedSigner = AppConfig.getInstance().getSharedSigner();
+            MartusSecurity signer = sharedSigner.acquire(AppConfig.getInstance().getCrypto());
+            if (null == signer)
+                return;
+            File transcoded = null;
+            File compressed = null;
+            try {
+                transcoded = transcoder.transcode(file, imagePolicy);
+                File source = (null == transcoded) ? file : transcoded;
+                if (compress)
+                    compressed = compressor.compress(source);
+                if (null != compressed)
+                    source = compressed;
+                SessionKey key = signer.createSessionKey();
+                AttachmentPacket packet = new AttachmentPacket(signer.getPublicKeyString(), key, source, signer);
+                store.saveStagedAttachment(packet, signer);
+                synchronized (this) {
+                    if (!cancelled) {
+                        uid = packet.getUniversalId();
+                        sessionKey = key;
+                        label = getLabel(null != transcoded, null != compressed);
+                        return;
+                    }
+                }
+                store.discardStagedAttachment(packet.getUniversalId());
+            } catch (Exception e) {
+                Log.e(AppConfig.LOG_LABEL, "problem staging attachment " + file.getName(), e);
+            } finally {
+                if (null != transcoded)
+                    transcoded.delete();
+                if (null != compressed)
+                    compressed.delete();
+                sharedSigner.release(signer);
+            }
+        }
+
+        private String getLabel(boolean transcoded, boolean compressed) {
+            String label = file.getName();
+            String lowerCaseLabel = label.toLowerCase();
+            if (transcoded && !lowerCaseLabel.endsWith(ImageAttachmentTranscoder.JPEG_SUFFIX) && !lowerCaseLabel.endsWith(".jpeg"))
+                label += ImageAttachmentTranscoder.JPEG_SUFFIX;
+            if (compressed)
+                label += AttachmentCompressor.COMPRESSED_SUFFIX;
+            return label;
+        }
+
+        synchronized AttachmentProxy takeProxyIfReady() {
+            if (null == uid || file.length() != length || file.lastModified() != lastModified)
+                return null;
+            // the staged packet may have been removed from the database since
+            if (!AppConfig.getInstance().getStore().getDatabase().doesRecordExist(DatabaseKey.createLegacyKey(uid)))
+                return null;
+            AttachmentProxy proxy = new AttachmentProxy(uid, label, sessionKey);
+            // the packet now belongs to the bulletin and goes when the bulletin is destroyed
+            uid = null;
+            return proxy;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (null != future)
+                future.cancel(false);
+            if (null != uid) {
+                AppConfig.getInstance().getStore().discardStagedAttachment(uid);
+                uid = null;
+            }
+        }
+    }
+}
@@ -7,6 +7,7 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.util.Log;
@@ -86,6 +87,7 @@ public class BulletinActivity extends AbstractMainActivityWithMainMenuHandler im
     private boolean autoLogout;
 
     private Map<String, File> attachmentNameToFileMap;
+    private Map<String, String> attachmentLabelToNameMap;
     private String attachmentToRemoveName;
     private EditText titleText;
     private EditText summaryText;
@@ -95,6 +97,7 @@ public class BulletinActivity extends AbstractMainActivityWithMainMenuHandler im
     private boolean shouldShowInstallExplorer = false;
     private IndeterminateProgressDialog indeterminateDialog;
     private DeterminateProgressDialog determinateDialog;
+    private BulletinChunkPipe chunkPipe;
 
 	boolean haveFormInfo = false;
 
@@ -142,6 +145,7 @@ public class BulletinActivity extends AbstractMainActivityWithMainMenuHandler im
     private void clearFieldsAndAttachmentsMap() {
         try {
             attachmentNameToFileMap = new ConcurrentHashMap<String, File>(2);
+            attachmentLabelToNameMap = new ConcurrentHashMap<String, String>(2);
             titleText.setText("");
             summaryText.setText("");
             attachmentAdapter.clear();
@@ -173,15 +177,23 @@ public class BulletinActivity extends AbstractMainActivityWithMainMenuHandler im
             }
             
             Bulletin bulletin = createBulletin();
+            attachmentLabelToNameMap.clear();
             Iterator<Map.Entry<String,File>> iterator = attachmentNameToFileMap.entrySet().iterator();
             while (iterator.hasNext()) {
                 Map.Entry<String,File> entry = iterator.next();
                 File attachmentFile = entry.getValue();
-                if (!addAttachmentToBulletin(bulletin, attachmentFile)) {
+                if (!attachmentFile.exists()) {
+                    AppConfig.getInstance().getAttachmentStager().discard(attachmentFile.getName());
                     iterator.remove();
                     attachmentAdapter.remove(attachmentFile.getName());
                     Toast.makeText(this, getString(R.string.attachment_no_longer_exists, attachmentFile.getName()), Toast.LENGTH_LONG).show();
-
+                    restageAttachments(bulletin);
+                    return;
+                }
+                if (!addAttachmentToBulletin(bulletin, attachmentFile)) {
+                    Toast.makeText(this, getString(R.string.attachment_metadata_not_removed, attachmentFile.getName()), Toast.LENGTH_LONG).show();
+                    restageAttachments(bulletin);
+                    AppConfig.getInstance().getAttachmentStager().stage(attachmentFile, shouldCompressAttachments(), ImageAttachmentPolicy.fromSettings(mySettings));
                     return;
                 }
             }
@@ -218,23 +230,51 @@ public class BulletinActivity extends AbstractMainActivityWithMainMenuHandler im
 			actionBar.setDisplayHomeAsUpEnabled(false);
 	}
 
+    /**
+     * @return false if the attachment is a photo whose metadata should be removed but could not be
+     */
 	private boolean addAttachmentToBulletin(Bulletin bulletin, File attachment) throws IOException, MartusCrypto.EncryptionException {
-        AttachmentProxy attProxy = new AttachmentProxy(attachment);
-        if (!attachment.exists()) {
-            return false;
+        AttachmentStager stager = AppConfig.getInstance().getAttachmentStager();
+        ImageAttachmentPolicy imagePolicy = ImageAttachmentPolicy.fromSettings(mySettings);
+        AttachmentProxy attProxy;
+        if (imagePolicy.shouldStripMetadata()) {
+            // saveBulletin would send the original, so the stripped copy has to be ready now
+            attProxy = stager.takeStrippedProxy(attachment, shouldCompressAttachments(), imagePolicy);
+            if (null == attProxy && ImageAttachmentTranscoder.isJpeg(attachment))
+                return false;
+        } else {
+            attProxy = stager.takeProxy(attachment);
         }
-        else {
-            bulletin.addPublicAttachment(attProxy);
+        if (null == attProxy) {
+            attProxy = new AttachmentProxy(attachment);
         }
+        attachmentLabelToNameMap.put(attProxy.getLabel(), attachment.getName());
+        bulletin.addPublicAttachment(attProxy);
         return true;
     }
 
+    private void restageAttachments(Bulletin bulletin) {
+        // this bulletin is abandoned, so hand its staged packets back for the next attempt
+        for (AttachmentProxy proxy : bulletin.getPublicAttachments()) {
+            File attachment = attachmentNameToFileMap.get(getAttachmentName(proxy.getLabel()));
+            if (null != attachment && null == proxy.getFile()) {
+                store.discardStagedAttachment(proxy.getUniversalId());
+                AppConfig.getInstance().getAttachmentStager().stage(attachment, shouldCompressAttachments(), ImageAttachmentPolicy.fromSettings(mySettings));
+            }
+        }
+    }
+
     private void addAttachmentToMap(File attachment) {
         attachmentAdapter.add(attachment.getName());
         attachmentNameToFileMap.put(attachment.getName(), attachment);
+        AppConfig.getInstance().getAttachmentStager().stage(attachment, shouldCompressAttachments(), ImageAttachmentPolicy.fromSettings(mySettings));
 	    attachmentsHelpText.setText(R.string.attachments_added_label);
     }
 
+    private boolean shouldCompressAttachments() {
+        return mySettings.getBoolean(SettingsActivity.KEY_COMPRESS_ATTACHMENTS, false);
+    }
+
     private ArrayList<File> getFilesFromIntent(Intent intent) {
         ArrayList<File> attachments = new ArrayList<File>(1);
         String filePath;
@@ -417,8 +457,13 @@ public class BulletinActivity extends AbstractMainActivityWithMainMenuHandler im
     }
 
     private void zipBulletin(Bulletin bulletin)  {
-        indeterminateDialog = IndeterminateProgressDialog.newInstance();
-        indeterminateDialog.show(getSupportFragmentManager(), "dlg_zipping");
+        final boolean pipelinedSend = mySettings.getBoolean(SettingsActivity.KEY_PIPELINED_SEND, false);
+        if (pipelinedSend) {
+            showSendingDialog();
+        } else {
+            indeterminateDialog = IndeterminateProgressDialog.newInstance();
+            indeterminateDialog.show(getSupportFragmentManager(), "dlg_zipping");
+        }
 
 	    if (haveFormInfo) {
 		    FormController formController = Collect.getInstance().getFormController();
@@ -463,11 +508,31 @@ public class BulletinActivity extends AbstractMainActivityWithMainMenuHandler im
 	    clearDirectory(new File(Collect.INSTANCES_PATH));
 
         bulletin.set(Bulletin.TAGLANGUAGE, getDefaultLanguageForNewBulletin());
+        if (pipelinedSend) {
+            zipAndSendBulletinPipelined(bulletin);
+            return;
+        }
         final AsyncTask<Object, Integer, File> zipTask = new ZipBulletinTask(bulletin, this);
         zipTask.execute(getAppDir(), store);
 
     }
 
+    private void zipAndSendBulletinPipelined(Bulletin bulletin) {
+        chunkPipe = new BulletinChunkPipe(NetworkInterfaceConstants.CLIENT_MAX_CHUNK_SIZE, BulletinChunkPipe.DEFAULT_CAPACITY);
+        final AsyncTask<Object, Integer, File> zipTask = new ZipBulletinTask(bulletin, this, chunkPipe);
+        executeInParallel(zipTask, getAppDir(), store);
+        startUploadTask(bulletin.getUniversalId(), chunkPipe, true);
+    }
+
+    private static void executeInParallel(AsyncTask<Object, Integer, ?> task, Object... params) {
+        // zipping and uploading must overlap, but from Honeycomb on execute() runs tasks one at a time
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, params);
+        } else {
+            task.execute(params);
+        }
+    }
+
 	private Bulletin createBulletin() throws Exception
     {
         Bulletin bulletin;
@@ -520,6 +585,10 @@ public class BulletinActivity extends AbstractMainActivityWithMainMenuHandler im
         } catch (IllegalStateException e) {
             //this is okay as the user may have closed this screen
         }
+        if (UploadBulletinTask.PACKAGING_FAILED.equals(result)) {
+            //onZipped has already reported the failure and kept the bulletin for another try
+            return;
+        }
         String message = getResultMessage(result, this);
         Toast.makeText(this, message, Toast.LENGTH_LONG).show();
         if (autoLogout) {
@@ -549,35 +618,61 @@ public class BulletinActivity extends AbstractMainActivityWithMainMenuHandler im
             //this is okay as the user may have closed this screen
         }
         if (zippedFile == null) {
+            chunkPipe = null;
             Toast.makeText(this, getString(R.string.failure_zipping_bulletin), Toast.LENGTH_SHORT).show();
             startInactivityTimer();
             return;
         }
 
+        if (null != chunkPipe) {
+            //upload was started alongside zipping and is already under way
+            chunkPipe = null;
+            destroyZippedBulletin(bulletin);
+            clearFieldsAndAttachmentsMap();
+            startInactivityTimer();
+            return;
+        }
+
         sendZippedBulletin(bulletin, zippedFile);
     }
 
     private void sendZippedBulletin(Bulletin bulletin, File zippedFile) {
+        showSendingDialog();
+
+        UniversalId bulletinId = bulletin.getUniversalId();
+        destroyZippedBulletin(bulletin);
+        startUploadTask(bulletinId, zippedFile, false);
+        clearFieldsAndAttachmentsMap();
+        startInactivityTimer();
+    }
+
+    private void showSendingDialog() {
         determinateDialog = DeterminateProgressDialog.newInstance();
         try {
             determinateDialog.show(getSupportFragmentManager(), "dlg_sending");
         } catch (IllegalStateException e) {
             // just means user has left app - do nothing
         }
+    }
 
-        UniversalId bulletinId = bulletin.getUniversalId();
+    private void destroyZippedBulletin(Bulletin bulletin) {
         try {
             removeCachedUriAttachments(bulletin);
             store.destroyBulletin(bulletin);
         } catch (IOException e) {
             Log.e(AppConfig.LOG_LABEL, "problem destroying bulletin", e);
         }
+    }
+
+    private void startUploadTask(UniversalId bulletinId, Object zippedFileOrPipe, boolean inParallel) {
         AsyncTask<Object, Integer, String> uploadTask = new UploadBulletinTask((MartusApplication)getApplication(),
                 this, bulletinId);
-        MartusSecurity cryptoCopy = cloneSecurity(AppConfig.getInstance().getCrypto());
-        uploadTask.execute(bulletin.getUniversalId(), zippedFile, getNetworkGateway(), cryptoCopy);
-        clearFieldsAndAttachmentsMap();
-        startInactivityTimer();
+        MartusSecurity signer = AppConfig.getInstance().getSharedSigner().acquire(AppConfig.getInstance().getCrypto());
+        if (inParallel) {
+            executeInParallel(uploadTask, bulletinId, zippedFileOrPipe, getNetworkGateway(), signer);
+        } else {
+            uploadTask.execute(bulletinId, zippedFileOrPipe, getNetworkGateway(), signer);
+        }
     }
 
     private void startInactivityTimer() {
@@ -588,7 +683,7 @@ public class BulletinActivity extends AbstractMainActivityWithMainMenuHandler im
     private void removeCachedUriAttachments(Bulletin bulletin) {
         AttachmentProxy[] attachmentProxies = bulletin.getPublicAttachments();
         for (AttachmentProxy proxy : attachmentProxies) {
-            String label = proxy.getLabel();
+            String label = getAttachmentName(proxy.getLabel());
             File file = new File(getAppDir(), label);
             if (file.exists()) {
                 file.delete();
@@ -596,6 +691,12 @@ public class BulletinActivity extends AbstractMainActivityWithMainMenuHandler im
         }
     }
 
+    private String getAttachmentName(String label) {
+        // a staged attachment may have been sent as a transcoded or compressed copy
+        String name = attachmentLabelToNameMap.get(label);
+        return (null == name) ? label : name;
+    }
+
     private void removeCachedUnsentAttachments() {
         Set<String> filenames = attachmentNameToFileMap.keySet();
         for (String filename : filenames) {
@@ -617,12 +718,14 @@ public class BulletinActivity extends AbstractMainActivityWithMainMenuHandler im
     public void onConfirmationAccepted() {
         switch (getConfirmationType()) {
             case CONFIRMATION_TYPE_CANCEL_BULLETIN :
+                AppConfig.getInstance().getAttachmentStager().discardAll();
                 removeCachedUnsentAttachments();
                 clearDirectory(new File(Collect.INSTANCES_PATH));
                 this.finish();
                 break;
             case CONFIRMATION_TYPE_DELETE_ATTACHMENT :
                 attachmentNameToFileMap.remove(attachmentToRemoveName);
+                AppConfig.getInstance().getAttachmentStager().discard(attachmentToRemoveName);
                 attachmentAdapter.remove(attachmentToRemoveName);
 	            if (attachmentAdapter.isEmpty()) {
 		            attachmentsHelpText.setText(R.string.attachments_add_label);
@@ -0,0 +1,106 @@
+package org.martus.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads bulletin zip chunks into one reusable byte buffer and Base64 encodes them into one
+ * reusable char buffer, producing the same text as StreamableBase64.encode. The only
+ * allocation per chunk is the String handed to putBulletinChunk.
+ *
+ * Not thread safe; each upload should use its own encoder.
+ */
+public class BulletinChunkEncoder {
+
+    private static final char[] BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final char PAD = '=';
+
+    private byte[] rawBytes;
+    private char[] encodedChars;
+    private int encodedLength;
+
+    public BulletinChunkEncoder(int maxChunkSize) {
+        rawBytes = new byte[maxChunkSize];
+        encodedChars = new char[getEncodedLength(maxChunkSize)];
+    }
+
+    public int getMaxChunkSize() {
+        return rawBytes.length;
+    }
+
+    /**
+     * Grows the buffers if chunks of maxChunkSize are to be encoded; never shrinks them.
+     */
+    public void ensureCapacity(int maxChunkSize) {
+        if (maxChunkSize <= rawBytes.length)
+            return;
+        rawBytes = new byte[maxChunkSize];
+        encodedChars = new char[getEncodedLength(maxChunkSize)];
+    }
+
+    /**
+     * Fills the chunk buffer from the stream (up to maxBytes) and encodes it.
+     * @return number of raw bytes in the chunk, or -1 at end of stream
+     */
+    public int readAndEncodeChunk(InputStream in, int maxBytes) throws IOException {
+        final int limit = Math.min(maxBytes, rawBytes.length);
+        int filled = 0;
+        while (filled < limit) {
+            int count = in.read(rawBytes, filled, limit - filled);
+            if (count < 0)
+                break;
+            filled += count;
+        }
+        if (filled == 0)
+            return -1;
+        encode(rawBytes, 0, filled);
+        return filled;
+    }
+
+    /**
+     * Encodes bytes that are already in memory into the reusable char buffer.
+     */
+    public void encode(byte[] source, int offset, int length) {
+        if (getEncodedLength(length) > encodedChars.length)
+            throw new IllegalArgumentException("chunk larger than encoder buffer: " + length);
+
+        int in = offset;
+        int out = 0;
+        final int fullGroupsEnd = offset + (length / 3) * 3;
+        while (in < fullGroupsEnd) {
+            int bits = ((source[in++] & 0xff) << 16) | ((source[in++] & 0xff) << 8) | (source[in++] & 0xff);
+            encodedChars[out++] = BASE64_ALPHABET[(bits >>> 18) & 0x3f];
+            encodedChars[out++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+            encodedChars[out++] = BASE64_ALPHABET[(bits >>> 6) & 0x3f];
+            encodedChars[out++] = BASE64_ALPHABET[bits & 0x3f];
+        }
+
+        final int remaining = offset + length - in;
+        if (remaining == 1) {
+            int bits = (source[in] & 0xff) << 16;
+            encodedChars[out++] = BASE64_ALPHABET[(bits >>> 18) & 0x3f];
+            encodedChars[out++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+            encodedChars[out++] = PAD;
+            encodedChars[out++] = PAD;
+        } else if (remaining == 2) {
+            int bits = ((source[in] & 0xff) << 16) | ((source[in + 1] & 0xff) << 8);
+            encodedChars[out++] = BASE64_ALPHABET[(bits >>> 18) & 0x3f];
+            encodedChars[out++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+            encodedChars[out++] = BASE64_ALPHABET[(bits >>> 6) & 0x3f];
+            encodedChars[out++] = PAD;
+        }
+        encodedLength = out;
+    }
+
+    /**
+     * @return the most recently encoded chunk as the String the network gateway expects
+     */
+    public String getEncodedChunk() {
+        return new String(encodedChars, 0, encodedLength);
+    }
+
+    static int getEncodedLength(int rawLength) {
+        return ((rawLength + 2) / 3) * 4;
+    }
+}
@@ -0,0 +1,202 @@
+package org.martus.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Bounded hand-off between a ZipBulletinTask writing a bulletin zip and an UploadBulletinTask
+ * sending it, so the first chunks can go out while the rest of the bulletin is still being packaged.
+ *
+ * The producer writes through {@link #getOutputStream()} and then calls {@link #finish(File)} or
+ * {@link #fail(Exception)}. The consumer calls {@link #takeChunk()} until it returns null.
+ */
+public class BulletinChunkPipe {
+
+    public static final int DEFAULT_CAPACITY = 4;
+
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    private final int chunkSize;
+    private final BlockingQueue<byte[]> chunks;
+    private final CountDownLatch producerDone;
+    private final ChunkingOutputStream outputStream;
+
+    private volatile boolean abandoned;
+    private volatile long estimatedSize;
+    private volatile File zipFile;
+    private volatile Exception failure;
+    private int totalSize;
+    private byte[] lookahead;
+
+    public BulletinChunkPipe(int chunkSize, int capacity) {
+        this.chunkSize = chunkSize;
+        chunks = new ArrayBlockingQueue<byte[]>(capacity);
+        producerDone = new CountDownLatch(1);
+        outputStream = new ChunkingOutputStream();
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setEstimatedSize(long estimatedSize) {
+        this.estimatedSize = estimatedSize;
+    }
+
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    /**
+     * Called by the producer once the zip has been completely written and verified.
+     */
+    public void finish(File completedZipFile) throws IOException {
+        outputStream.flushPartialChunk();
+        totalSize = outputStream.getBytesWritten();
+        zipFile = completedZipFile;
+        enqueue(END_OF_STREAM);
+        producerDone.countDown();
+    }
+
+    /**
+     * Called by the producer if packaging failed; the consumer's next take will throw.
+     */
+    public void fail(Exception e) {
+        failure = e;
+        chunks.clear();
+        chunks.offer(END_OF_STREAM);
+        producerDone.countDown();
+    }
+
+    /**
+     * Called by the consumer when it stops reading, so the producer never blocks on a full queue.
+     */
+    public void abandon() {
+        abandoned = true;
+        chunks.clear();
+    }
+
+    /**
+     * @return the next chunk, or null once the producer has finished
+     */
+    public byte[] takeChunk() throws IOException {
+        byte[] chunk = (lookahead != null) ? lookahead : takeFromQueue();
+        if (chunk == END_OF_STREAM)
+            return null;
+        lookahead = null;
+        return chunk;
+    }
+
+    /**
+     * Blocks until it is known whether another chunk will follow the one most recently taken.
+     * @return true if the chunk most recently taken was the last one
+     */
+    public boolean isAtEnd() throws IOException {
+        if (lookahead == null)
+            lookahead = takeFromQueue();
+        return lookahead == END_OF_STREAM;
+    }
+
+    /**
+     * @return the total zip size; only valid after takeChunk has returned null
+     */
+    public int getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Blocks until the producer is done.
+     * @return the completed zip file, or null if packaging failed
+     */
+    public File awaitZipFile() {
+        try {
+            producerDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return zipFile;
+    }
+
+    private byte[] takeFromQueue() throws IOException {
+        byte[] chunk;
+        try {
+            chunk = chunks.take();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted waiting for bulletin chunk");
+        }
+        if (chunk == END_OF_STREAM && failure != null)
+            throw new IOException("problem zipping bulletin: " + failure.getMessage());
+        return chunk;
+    }
+
+    private void enqueue(byte[] chunk) throws IOException {
+        if (abandoned)
+            return;
+        try {
+            chunks.put(chunk);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted queueing bulletin chunk");
+        }
+    }
+
+    private class ChunkingOutputStream extends OutputStream {
+        private byte[] current = new byte[chunkSize];
+        private int used;
+        private int bytesWritten;
+
+        @Override
+        public void write(int b) throws IOException {
+            current[used++] = (byte)b;
+            ++bytesWritten;
+            if (used == chunkSize)
+                flushFullChunk();
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            while (count > 0) {
+                int toCopy = Math.min(count, chunkSize - used);
+                System.arraycopy(buffer, offset, current, used, toCopy);
+                used += toCopy;
+                offset += toCopy;
+                count -= toCopy;
+                bytesWritten += toCopy;
+                if (used == chunkSize)
+                    flushFullChunk();
+            }
+        }
+
+        @Override
+        public void close() {
+            // the pipe is closed explicitly through finish or fail
+        }
+
+        int getBytesWritten() {
+            return bytesWritten;
+        }
+
+        void flushPartialChunk() throws IOException {
+            if (used == 0)
+                return;
+            byte[] partial = new byte[used];
+            System.arraycopy(current, 0, partial, 0, used);
+            used = 0;
+            enqueue(partial);
+        }
+
+        private void flushFullChunk() throws IOException {
+            byte[] full = current;
+            current = new byte[chunkSize];
+            used = 0;
+            enqueue(full);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package org.martus.android;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.martus.common.packet.UniversalId;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Durable record of every bulletin zip waiting to be sent. Each entry journals the bulletin's
+ * UniversalId, zip path, zip size, the last offset the server confirmed and the number of send
+ * attempts, so an interrupted upload can resume without asking the server where it stopped, and
+ * a zip written just before the process died is still found and sent later.
+ *
+ * The journal is rewritten in full (to a temporary file, then renamed) on every change, except
+ * that confirmed offsets are written at most once every OFFSET_SAVE_INTERVAL_MILLIS. An offset
+ * lost that way only means resuming from an earlier one, which the server refuses and the
+ * uploader then asks it where to resume.
+ */
+public class BulletinSendQueue {
+
+    public static final String JOURNAL_FILE_NAME = "send_queue.txt";
+    private static final String JOURNAL_HEADER = "#martus-send-queue\t1";
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final String UTF8 = "UTF-8";
+    private static final long UNKNOWN_SIZE = -1;
+    private static final long OFFSET_SAVE_INTERVAL_MILLIS = 5000;
+
+    private final File journalFile;
+    private final Map<String, Entry> entries;
+    private final Set<String> inFlight;
+    private long lastSavedAt;
+    private boolean unsavedOffsets;
+
+    public BulletinSendQueue(File appDir) {
+        journalFile = new File(appDir, JOURNAL_FILE_NAME);
+        entries = new LinkedHashMap<String, Entry>();
+        inFlight = new HashSet<String>();
+        load();
+    }
+
+    /**
+     * Journals a bulletin before its zip is written, so an upload that starts while it is being
+     * zipped cannot finish before the entry exists. Resends pick it up once {@link #recordZipped}
+     * has been called, unless the upload has marked it in flight by then.
+     */
+    public synchronized void enqueue(UniversalId uid, File zipFile) {
+        Entry entry = new Entry(uid.getAccountId(), uid.getLocalId(), zipFile.getAbsolutePath(), UNKNOWN_SIZE, 0, 0);
+        entries.put(getKey(uid), entry);
+        save();
+    }
+
+    /**
+     * Journals the size of a zip that has been completely written and verified.
+     */
+    public synchronized void recordZipped(UniversalId uid, File zipFile) {
+        Entry entry = entries.get(getKey(uid));
+        if (null == entry) {
+            entry = new Entry(uid.getAccountId(), uid.getLocalId(), zipFile.getAbsolutePath(), 0, 0, 0);
+            entries.put(getKey(uid), entry);
+        }
+        entry.size = zipFile.length();
+        entry.confirmedOffset = 0;
+        save();
+    }
+
+    public synchronized Entry getEntry(UniversalId uid) {
+        Entry entry = entries.get(getKey(uid));
+        return (null == entry) ? null : entry.copy();
+    }
+
+    /**
+     * @return a copy of all entries whose zip file was completed and still exists
+     */
+    public synchronized List<Entry> getPendingEntries() {
+        List<Entry> pending = new ArrayList<Entry>(entries.size());
+        for (Entry entry : entries.values()) {
+            if (entry.size != UNKNOWN_SIZE && entry.getZipFile().exists())
+                pending.add(entry.copy());
+        }
+        return pending;
+    }
+
+    /**
+     * @return the offset the server last confirmed for this zip, or -1 if unknown
+     */
+    public synchronized int getConfirmedOffset(UniversalId uid, File zipFile) {
+        Entry entry = entries.get(getKey(uid));
+        if (null == entry || entry.size != zipFile.length())
+            return -1;
+        return (int)entry.confirmedOffset;
+    }
+
+    public synchronized void recordAttempt(UniversalId uid, File zipFile) {
+        Entry entry = entries.get(getKey(uid));
+        if (null == entry) {
+            entry = new Entry(uid.getAccountId(), uid.getLocalId(), zipFile.getAbsolutePath(), zipFile.length(), 0, 0);
+            entries.put(getKey(uid), entry);
+        }
+        ++entry.attempts;
+        save();
+    }
+
+    /**
+     * Journals the offset once OFFSET_SAVE_INTERVAL_MILLIS have passed since the journal was last
+     * written; until then it is only kept in memory, see {@link #flush}.
+     */
+    public synchronized void recordConfirmedOffset(UniversalId uid, int offset) {
+        Entry entry = entries.get(getKey(uid));
+        if (null == entry)
+            return;
+        entry.confirmedOffset = offset;
+        if (getTime() - lastSavedAt < OFFSET_SAVE_INTERVAL_MILLIS) {
+            unsavedOffsets = true;
+            return;
+        }
+        save();
+    }
+
+    /**
+     * Writes any confirmed offsets that have not been journaled yet.
+     */
+    public synchronized void flush() {
+        if (unsavedOffsets)
+            save();
+    }
+
+    /**
+     * Forgets the confirmed offset, so the next upload asks the server where to resume.
+     */
+    public synchronized void clearConfirmedOffset(UniversalId uid) {
+        Entry entry = entries.get(getKey(uid));
+        if (null == entry)
+            return;
+        entry.confirmedOffset = -1;
+        save();
+    }
+
+    public synchronized void recordMoved(UniversalId uid, File newZipFile) {
+        Entry entry = entries.get(getKey(uid));
+        if (null == entry)
+            return;
+        entry.zipPath = newZipFile.getAbsolutePath();
+        save();
+    }
+
+    public synchronized void remove(UniversalId uid) {
+        entries.remove(getKey(uid));
+        inFlight.remove(getKey(uid));
+        save();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        inFlight.clear();
+        journalFile.delete();
+    }
+
+    /**
+     * Marks a bulletin as being sent by this process, so a concurrent resend leaves it alone.
+     * @return false if it was already being sent
+     */
+    public synchronized boolean markInFlight(UniversalId uid) {
+        return inFlight.add(getKey(uid));
+    }
+
+    public synchronized void clearInFlight(UniversalId uid) {
+        inFlight.remove(getKey(uid));
+    }
+
+    long getTime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private static String getKey(UniversalId uid) {
+        return uid.getAccountId() + FIELD_SEPARATOR + uid.getLocalId();
+    }
+
+    private void load() {
+        if (!journalFile.exists())
+            return;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8));
+            try {
+                String line = reader.readLine();
+                if (!JOURNAL_HEADER.equals(line)) {
+                    Log.w(AppConfig.LOG_LABEL, "ignoring send queue journal with unknown format");
+                    return;
+                }
+                while ((line = reader.readLine()) != null) {
+                    Entry entry = Entry.fromLine(line);
+                    if (null != entry)
+                        entries.put(entry.accountId + FIELD_SEPARATOR + entry.localId, entry);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(AppConfig.LOG_LABEL, "problem reading send queue journal", e);
+        }
+    }
+
+    private void save() {
+        lastSavedAt = getTime();
+        unsavedOffsets = false;
+        File tempFile = new File(journalFile.getParentFile(), journalFile.getName() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tempFile);
+            Writer writer = new OutputStreamWriter(out, UTF8);
+            try {
+                writer.write(JOURNAL_HEADER);
+                writer.write('\n');
+                for (Entry entry : entries.values()) {
+                    writer.write(entry.toLine());
+                    writer.write('\n');
+                }
+                writer.flush();
+                out.getFD().sync();
+            } finally {
+                writer.close();
+            }
+            if (!tempFile.renameTo(journalFile))
+                Log.e(AppConfig.LOG_LABEL, "problem replacing send queue journal");
+        } catch (IOException e) {
+            Log.e(AppConfig.LOG_LABEL, "problem writing send queue journal", e);
+        }
+    }
+
+    public static class Entry {
+        private final String accountId;
+        private final String localId;
+        private String zipPath;
+        private long size;
+        private long confirmedOffset;
+        private int attempts;
+
+        Entry(String accountId, String localId, String zipPath, long size, long confirmedOffset, int attempts) {
+            this.accountId = accountId;
+            this.localId = localId;
+            this.zipPath = zipPath;
+            this.size = size;
+            this.confirmedOffset = confirmedOffset;
+            this.attempts = attempts;
+        }
+
+        public UniversalId getUniversalId() {
+            return UniversalId.createFromAccountAndLocalId(accountId, localId);
+        }
+
+        public File getZipFile() {
+            return new File(zipPath);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getConfirmedOffset() {
+            return confirmedOffset;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        Entry copy() {
+            return new Entry(accountId, localId, zipPath, size, confirmedOffset, attempts);
+        }
+
+        String toLine() {
+            return accountId + FIELD_SEPARATOR + localId + FIELD_SEPARATOR + zipPath + FIELD_SEPARATOR +
+                    size + FIELD_SEPARATOR + confirmedOffset + FIELD_SEPARATOR + attempts;
+        }
+
+        static Entry fromLine(String line) {
+            String[] fields = line.split(FIELD_SEPARATOR);
+            if (fields.length != 6)
+                return null;
+            try {
+                return new Entry(fields[0], fields[1], fields[2], Long.parseLong(fields[3]),
+                        Long.parseLong(fields[4]), Integer.parseInt(fields[5]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.martus.android;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.martus.clientside.MobileClientSideNetworkGateway;
+import org.martus.clientside.MobileClientSideNetworkGateway.SignedBulletinChunk;
+import org.martus.common.crypto.MartusCrypto;
+import org.martus.common.network.NetworkInterfaceConstants;
+import org.martus.common.packet.UniversalId;
+
+import android.os.SystemClock;
+
+/**
+ * Reads, Base64 encodes and signs the next chunk of a bulletin zip on a background thread while
+ * the current chunk is being sent, so the upload does not wait on local work between chunks.
+ * Only one putBulletinChunk is ever in flight, so the server still gets the chunks in order.
+ *
+ * Not thread safe; each upload uses its own prefetcher and must close it.
+ */
+public class ChunkPrefetcher {
+
+    public static final int CHUNK_SIZE = NetworkInterfaceConstants.CLIENT_MAX_CHUNK_SIZE;
+
+    private final UniversalId uid;
+    private final File zipFile;
+    private final int totalSize;
+    private final MartusCrypto signer;
+    private final SendMetrics.Record metrics;
+    private final BulletinChunkEncoder encoder;
+    private final ExecutorService worker;
+
+    private FileInputStream inputStream;
+    private int nextOffset;
+    private Future<SignedBulletinChunk> nextChunk;
+
+    public ChunkPrefetcher(UniversalId uid, File zipFile, int totalSize, MartusCrypto signer, SendMetrics.Record metrics) {
+        this.uid = uid;
+        this.zipFile = zipFile;
+        this.totalSize = totalSize;
+        this.signer = signer;
+        this.metrics = metrics;
+        encoder = new BulletinChunkEncoder(CHUNK_SIZE);
+        worker = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Drops whatever was prepared and starts preparing chunks from offset.
+     */
+    public void seek(int offset) throws IOException {
+        waitForNextChunk();
+        if (null != inputStream)
+            inputStream.close();
+        inputStream = new FileInputStream(zipFile);
+        inputStream.skip(offset);
+        nextOffset = offset;
+        prepareNextChunk();
+    }
+
+    /**
+     * @return the chunk at the current offset, or null at the end of the zip; the one after it
+     *         is prepared while this one is sent
+     */
+    public SignedBulletinChunk take() throws IOException, MartusCrypto.MartusSignatureException {
+        SignedBulletinChunk chunk = getNextChunk();
+        if (null != chunk) {
+            nextOffset += chunk.getChunkSize();
+            prepareNextChunk();
+        }
+        return chunk;
+    }
+
+    public void close() throws IOException {
+        waitForNextChunk();
+        worker.shutdownNow();
+        if (null != inputStream)
+            inputStream.close();
+    }
+
+    private void prepareNextChunk() {
+        final int offset = nextOffset;
+        nextChunk = worker.submit(new Callable<SignedBulletinChunk>() {
+            @Override
+            public SignedBulletinChunk call() throws Exception {
+                long startMillis = SystemClock.elapsedRealtime();
+                int chunkSize = encoder.readAndEncodeChunk(inputStream, CHUNK_SIZE);
+                metrics.addStageTime(SendMetrics.STAGE_ENCODE, SystemClock.elapsedRealtime() - startMillis);
+                if (chunkSize <= 0)
+                    return null;
+                return MobileClientSideNetworkGateway.signBulletinChunk(signer, uid.getAccountId(), uid.getLocalId(),
+                        totalSize, offset, chunkSize, encoder.getEncodedChunk());
+            }
+        });
+    }
+
+    private SignedBulletinChunk getNextChunk() throws IOException, MartusCrypto.MartusSignatureException {
+        try {
+            return nextChunk.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted preparing bulletin chunk");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof MartusCrypto.MartusSignatureException)
+                throw (MartusCrypto.MartusSignatureException)cause;
+            throw new IOException("problem preparing bulletin chunk: " + cause);
+        }
+    }
+
+    // the worker reads the input stream, so it must be idle before the stream is replaced
+    private void waitForNextChunk() {
+        if (null == nextChunk)
+            return;
+        try {
+            nextChunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // the chunk is being dropped anyway
+        }
+        nextChunk = null;
+    }
+}
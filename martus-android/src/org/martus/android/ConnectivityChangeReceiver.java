@@ -0,0 +1,17 @@
+package org.martus.android;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Registered by MartusApplication while the app is running, so bulletins waiting in the send
+ * queue go out as soon as a network comes back instead of when someone next picks resend.
+ */
+public class ConnectivityChangeReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        AppConfig.getInstance().getResendScheduler().onConnectivityChanged(context);
+    }
+}
@@ -0,0 +1,58 @@
+package org.martus.android;
+
+import android.content.SharedPreferences;
+
+/**
+ * How photo attachments are prepared before they are encrypted: the longest side they may have,
+ * the JPEG quality they are re-encoded at, and whether their EXIF metadata, including location,
+ * is dropped. The defaults leave photos exactly as they were taken.
+ */
+public class ImageAttachmentPolicy {
+
+    public static final String DEFAULT_MAX_DIMENSION = "0";
+    public static final String DEFAULT_JPEG_QUALITY = "85";
+
+    private final int maxDimension;
+    private final int jpegQuality;
+    private final boolean stripMetadata;
+
+    public ImageAttachmentPolicy(int maxDimension, int jpegQuality, boolean stripMetadata) {
+        this.maxDimension = maxDimension;
+        this.jpegQuality = jpegQuality;
+        this.stripMetadata = stripMetadata;
+    }
+
+    public static ImageAttachmentPolicy fromSettings(SharedPreferences settings) {
+        int maxDimension = parseSetting(settings, SettingsActivity.KEY_IMAGE_MAX_DIMENSION, DEFAULT_MAX_DIMENSION);
+        int jpegQuality = parseSetting(settings, SettingsActivity.KEY_IMAGE_QUALITY, DEFAULT_JPEG_QUALITY);
+        boolean stripMetadata = settings.getBoolean(SettingsActivity.KEY_STRIP_IMAGE_METADATA, false);
+        return new ImageAttachmentPolicy(maxDimension, jpegQuality, stripMetadata);
+    }
+
+    private static int parseSetting(SharedPreferences settings, String key, String defaultValue) {
+        try {
+            return Integer.parseInt(settings.getString(key, defaultValue));
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(defaultValue);
+        }
+    }
+
+    /**
+     * @return the longest side a photo may have, or 0 to keep its size
+     */
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    public int getJpegQuality() {
+        return jpegQuality;
+    }
+
+    public boolean shouldStripMetadata() {
+        return stripMetadata;
+    }
+
+    public boolean isActive() {
+        return maxDimension > 0 || stripMetadata;
+    }
+}
@@ -0,0 +1,201 @@
+package org.martus.android;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.util.Log;
+
+/**
+ * Re-encodes photo attachments according to an ImageAttachmentPolicy before they are encrypted.
+ *
+ * Only a subsampled copy of the photo is ever decoded: inSampleSize is the largest power of two
+ * that still leaves the longest side at or above the policy's maximum, so the decoded bitmap is
+ * under twice the maximum on each side however large the original is. The JPEG is written
+ * straight to a file in the work directory.
+ *
+ * Re-encoding drops every EXIF tag. The orientation is applied to the pixels, so the photo still
+ * shows the right way up. Date, camera and location tags are copied back unless the policy
+ * strips metadata. When it does, a JPEG that cannot be re-encoded is an error rather than being
+ * passed on with its metadata.
+ */
+public class ImageAttachmentTranscoder {
+
+    public static final String JPEG_SUFFIX = ".jpg";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final String JPEG_MIME_TYPE = "image/jpeg";
+    private static final String[] KEPT_EXIF_TAGS = {
+            ExifInterface.TAG_DATETIME,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LATITUDE_REF,
+            ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE_REF,
+            ExifInterface.TAG_GPS_ALTITUDE,
+            ExifInterface.TAG_GPS_ALTITUDE_REF,
+            ExifInterface.TAG_GPS_DATESTAMP,
+            ExifInterface.TAG_GPS_TIMESTAMP,
+            ExifInterface.TAG_GPS_PROCESSING_METHOD,
+    };
+
+    private final File workDirectory;
+
+    public ImageAttachmentTranscoder(File workDirectory) {
+        this.workDirectory = workDirectory;
+    }
+
+    /**
+     * @return a re-encoded JPEG copy of attachment in the work directory, or null if it is not a
+     *         photo or the policy leaves it as it is; the caller deletes the copy once it has been
+     *         encrypted
+     * @throws IOException also if the policy strips metadata and attachment is a JPEG that could
+     *         not be re-encoded
+     */
+    public File transcode(File attachment, ImageAttachmentPolicy policy) throws IOException {
+        if (!policy.isActive())
+            return null;
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(attachment.getAbsolutePath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            if (policy.shouldStripMetadata() && isJpeg(attachment))
+                throw new IOException("unable to read photo " + attachment.getName() + " to strip its metadata");
+            return null;
+        }
+
+        int longestSide = Math.max(bounds.outWidth, bounds.outHeight);
+        int maxDimension = policy.getMaxDimension();
+        boolean tooLarge = maxDimension > 0 && longestSide > maxDimension;
+        boolean isJpeg = JPEG_MIME_TYPE.equals(bounds.outMimeType);
+        if (!tooLarge && !(isJpeg && policy.shouldStripMetadata()))
+            return null;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = tooLarge ? getSampleSize(longestSide, maxDimension) : 1;
+        boolean mustStrip = isJpeg && policy.shouldStripMetadata();
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(attachment.getAbsolutePath(), options);
+        } catch (OutOfMemoryError e) {
+            bitmap = null;
+        }
+        if (null == bitmap) {
+            if (mustStrip)
+                throw new IOException("unable to decode photo " + attachment.getName() + " to strip its metadata");
+            return null;
+        }
+
+        File transcoded;
+        try {
+            bitmap = scaleAndRotate(bitmap, maxDimension, isJpeg ? getRotation(attachment) : 0);
+            workDirectory.mkdirs();
+            transcoded = File.createTempFile("image", JPEG_SUFFIX, workDirectory);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(transcoded), BUFFER_SIZE);
+            boolean written;
+            try {
+                written = bitmap.compress(Bitmap.CompressFormat.JPEG, policy.getJpegQuality(), out);
+            } finally {
+                out.close();
+            }
+            if (!written && mustStrip) {
+                transcoded.delete();
+                throw new IOException("unable to re-encode photo " + attachment.getName() + " to strip its metadata");
+            }
+            if (!written || (!policy.shouldStripMetadata() && transcoded.length() >= attachment.length())) {
+                transcoded.delete();
+                return null;
+            }
+        } finally {
+            bitmap.recycle();
+        }
+
+        if (isJpeg && !policy.shouldStripMetadata())
+            copyMetadata(attachment, transcoded);
+        Log.i(AppConfig.LOG_LABEL, "transcoded photo " + attachment.getName() + " from " + attachment.length() +
+                " to " + transcoded.length() + " bytes");
+        return transcoded;
+    }
+
+    /**
+     * @return true if file starts like a JPEG, whether or not it can be decoded
+     */
+    public static boolean isJpeg(File file) {
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                return in.read() == 0xFF && in.read() == 0xD8 && in.read() == 0xFF;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static int getSampleSize(int longestSide, int maxDimension) {
+        int sampleSize = 1;
+        while (longestSide / (sampleSize * 2) >= maxDimension)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    private static Bitmap scaleAndRotate(Bitmap bitmap, int maxDimension, int rotation) {
+        int longestSide = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        float scale = (maxDimension > 0 && longestSide > maxDimension) ? (float)maxDimension / longestSide : 1f;
+        if (scale == 1f && rotation == 0)
+            return bitmap;
+
+        Matrix matrix = new Matrix();
+        matrix.postScale(scale, scale);
+        matrix.postRotate(rotation);
+        Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (transformed != bitmap)
+            bitmap.recycle();
+        return transformed;
+    }
+
+    private static int getRotation(File attachment) {
+        try {
+            ExifInterface exif = new ExifInterface(attachment.getAbsolutePath());
+            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            Log.w(AppConfig.LOG_LABEL, "unable to read photo orientation", e);
+            return 0;
+        }
+    }
+
+    private static void copyMetadata(File original, File transcoded) {
+        try {
+            ExifInterface source = new ExifInterface(original.getAbsolutePath());
+            ExifInterface target = new ExifInterface(transcoded.getAbsolutePath());
+            for (String tag : KEPT_EXIF_TAGS) {
+                String value = source.getAttribute(tag);
+                if (null != value)
+                    target.setAttribute(tag, value);
+            }
+            target.saveAttributes();
+        } catch (IOException e) {
+            Log.w(AppConfig.LOG_LABEL, "unable to copy photo metadata", e);
+        }
+    }
+}
@@ -24,6 +24,9 @@ public class LogOutProcess implements Runnable {
             return;
         }
 
+        AppConfig.getInstance().getAttachmentStager().discardAll();
+        AppConfig.getInstance().getResendScheduler().cancel(MartusApplication.getInstance());
+
         MartusSecurity martusCrypto = AppConfig.getInstance().getCrypto();
         if (null != martusCrypto) {
             Log.i(AppConfig.LOG_LABEL, "!!!! About to clear keypair !!!!!");
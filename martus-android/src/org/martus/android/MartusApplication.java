@@ -5,7 +5,9 @@ import org.martus.common.network.PassThroughTransportWrapper;
 import org.odk.collect.android.application.Collect;
 
 import android.app.Application;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
 import android.preference.PreferenceManager;
 
 /**
@@ -43,6 +45,7 @@ public class MartusApplication extends Application {
 
 	    PRNGFixes.apply();
         initSingletons();
+        registerReceiver(new ConnectivityChangeReceiver(), new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 
     protected void initSingletons()
@@ -2,16 +2,21 @@ package org.martus.android;
 
 import org.martus.common.crypto.MartusCrypto;
 import org.martus.common.crypto.MartusSecurity;
+import org.martus.common.crypto.SignatureEngine;
 import org.martus.common.packet.Packet;
 import org.martus.util.inputstreamwithseek.FileInputStreamWithSeek;
 import org.martus.util.inputstreamwithseek.InputStreamWithSeek;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * @author roms
@@ -24,7 +29,9 @@ public class MartusCryptoFileUtils
 					InputStream is, MartusSecurity martusCrypto) throws Exception
 	{
 		try {
-			FileOutputStream fileOutputStream = new FileOutputStream(dataFile);
+			// the ciphertext is signed as it is written, rather than read back from dataFile afterwards
+			SignatureEngine signer = SignatureEngine.createSigner(martusCrypto.getKeyPair());
+			OutputStream fileOutputStream = new SigningOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile), BUFFER_SIZE), signer);
 			martusCrypto.setShouldWriteAuthorDecryptableData(true);
 			martusCrypto.encrypt(is, fileOutputStream);
 			martusCrypto.setShouldWriteAuthorDecryptableData(false);
@@ -32,9 +39,7 @@ public class MartusCryptoFileUtils
 			fileOutputStream.close();
 			is.close();
 
-			FileInputStream in = new FileInputStream(dataFile);
-			byte[] signature = martusCrypto.createSignatureOfStream(in);
-			in.close();
+			byte[] signature = signer.getSignature();
 
 			FileOutputStream out = new FileOutputStream(signatureFile);
 			out.write(signature);
@@ -62,6 +67,28 @@ public class MartusCryptoFileUtils
 		return plainText;
 	}
 
+	/**
+	 * Like verifyAndReadSignedFile, but decrypts as the returned stream is read instead of
+	 * into memory. The stream uses decrypter's cipher until it is closed, so decrypter must be
+	 * a copy nothing else encrypts or decrypts with in the meantime.
+	 */
+	public static InputStream openVerifiedSignedFile(File dataFile, File sigFile, MartusSecurity decrypter) throws Exception
+	{
+		if(!isSignatureFileValid(dataFile, sigFile, decrypter))
+			throw new Packet.SignatureVerificationException();
+
+		InputStreamWithSeek encryptedInputStream = new FileInputStreamWithSeek(dataFile);
+		try
+		{
+			return new BufferedInputStream(decrypter.createDecryptingInputStream(encryptedInputStream, null), BUFFER_SIZE);
+		}
+		catch (Exception e)
+		{
+			encryptedInputStream.close();
+			throw e;
+		}
+	}
+
 	private static boolean isSignatureFileValid(File dataFile, File sigFile, MartusSecurity martusCrypto) throws IOException, MartusCrypto.MartusSignatureException
 	{
 		byte[] signature =	new byte[(int)sigFile.length()];
@@ -81,4 +108,44 @@ public class MartusCryptoFileUtils
 		}
 	}
 
+	private static class SigningOutputStream extends FilterOutputStream
+	{
+		public SigningOutputStream(OutputStream out, SignatureEngine signer)
+		{
+			super(out);
+			this.signer = signer;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			try
+			{
+				signer.digest((byte)b);
+			}
+			catch (Exception e)
+			{
+				throw new IOException(e.getMessage());
+			}
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException
+		{
+			out.write(buffer, offset, count);
+			try
+			{
+				signer.digest(buffer, offset, count);
+			}
+			catch (Exception e)
+			{
+				throw new IOException(e.getMessage());
+			}
+		}
+
+		private final SignatureEngine signer;
+	}
+
+	private static final int BUFFER_SIZE = 8192;
 }
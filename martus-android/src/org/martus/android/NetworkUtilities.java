@@ -4,6 +4,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Build;
 import android.preference.PreferenceManager;
 
 /**
@@ -23,4 +24,17 @@ public class NetworkUtilities
 		    }
 	        return netInfo != null && netInfo.isConnected() && isDesiredConnectionType;
 	    }
+
+	/**
+	 * Whether the active network is one the user is not paying for by the byte. Before
+	 * Jelly Bean there is no metered flag, so only wifi and ethernet count.
+	 */
+	public static boolean isActiveNetworkUnmetered(Context context) {
+		ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+			return !cm.isActiveNetworkMetered();
+		NetworkInfo netInfo = cm.getActiveNetworkInfo();
+		return netInfo != null && (netInfo.getType() == ConnectivityManager.TYPE_WIFI ||
+				netInfo.getType() == ConnectivityManager.TYPE_ETHERNET);
+	}
 }
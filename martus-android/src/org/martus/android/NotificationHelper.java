@@ -23,6 +23,11 @@ public class NotificationHelper {
     {
         mContext = context;
         mNotificationId = notificationId;
+        mNotificationManager = (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    public void setTitle(String title) {
+        mTitle = title;
     }
 
     /**
@@ -30,7 +35,6 @@ public class NotificationHelper {
      */
     public void createNotification(String title, String subject) {
         mTitle = title;
-        mNotificationManager = (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
 
         //create the content which is shown in the notification pulldown
         final Notification notification = new NotificationCompat.Builder(mContext)
@@ -92,4 +96,11 @@ public class NotificationHelper {
 
         mNotificationManager.notify(mNotificationId, notification);
     }
+
+    /**
+     * Removes the notification from the status bar without a result.
+     */
+    public void cancel() {
+        mNotificationManager.cancel(mNotificationId);
+    }
 }
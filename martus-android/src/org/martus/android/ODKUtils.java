@@ -1,9 +1,15 @@
 package org.martus.android;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Set;
@@ -11,6 +17,7 @@ import java.util.Set;
 import org.javarosa.core.model.Constants;
 import org.javarosa.core.model.FormIndex;
 import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.utils.DateUtils;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryPrompt;
@@ -76,6 +83,8 @@ public class ODKUtils
 	private static ChoiceItem[] booleanChoices;
 	private static final String DATE_FORMAT_MARTUS = "%Y-%m-%d";
 	public static final String MARTUS_CUSTOM_ODK_FORM = "Martus.xml";
+	public static final String MARTUS_CUSTOM_ODK_FORM_KEY = "Martus.xml.key";
+	private static final int XML_OUTPUT_BUFFER_SIZE = 16 * 1024;
 	public static final String MARTUS_CUSTOM_ODK_INSTANCE = "instance.xml";
 	public static final String MARTUS_CUSTOM_ODK_INSTANCE_SIG = "instance.sig";
 	public static final String MARTUS_CUSTOM_TEMPLATE = "martus.mct";
@@ -206,55 +215,128 @@ public class ODKUtils
 
 	public static void writeXml(Context context, FieldSpecCollection initialSpecs){
 
-		// delete cached ODK form file
+		// reuse the generated form if it was built from the same template; leaving Martus.xml
+		// byte for byte unchanged also keeps ODK's md5 keyed .formdef cache valid
+		String formKey = getFormCacheKey(context, initialSpecs);
 		File dir = new File(Collect.FORMS_PATH);
 		File file = new File(dir, MARTUS_CUSTOM_ODK_FORM);
+		File keyFile = new File(Collect.CACHE_PATH, MARTUS_CUSTOM_ODK_FORM_KEY);
+		// the specs are shared with the rest of the app, which expects the standard labels filled in
+		addStandardLabels(context, initialSpecs);
+		if (formKey != null && file.exists() && formKey.equals(readFormCacheKey(keyFile))) {
+			Log.i(AppConfig.LOG_LABEL, "reusing generated odk form for unchanged template");
+			return;
+		}
+
+		// delete cached ODK form file
+		keyFile.delete();
 		file.delete();
 
-		addStandardLabels(context, initialSpecs);
 		FieldSpecCollection specCollection = filterSpecs(context, initialSpecs);
 	    XmlSerializer serializer = Xml.newSerializer();
-	    StringWriter writer = new StringWriter();
 		FieldSpec[] fields = specCollection.asArray();
-	    try {
-	        serializer.setOutput(writer);
-	        serializer.startDocument("UTF-8", true);
-	        serializer.startTag("", ODK_TAG_HTML);
-		    serializer.attribute("", "xmlns", "http://www.w3.org/2002/xforms");
-		    serializer.attribute("", "xmlns:h", "http://www.w3.org/1999/xhtml");
-		    serializer.attribute("", "xmlns:ev", "http://www.w3.org/2001/xml-events");
-		    serializer.attribute("", "xmlns:xsd", "http://www.w3.org/2001/XMLSchema");
-		    serializer.attribute("", "xmlns:jr", "http://openrosa.org/javarosa");
-		    serializer.startTag("", ODK_TAG_HEAD);
-		    serializer.startTag("", ODK_TAG_TITLE);
-		    serializer.text("Martus");
-		    serializer.endTag("", ODK_TAG_TITLE);
-		    serializer.startTag("", ODK_TAG_MODEL);
-
-		    createInstanceSection(serializer, fields, context);
-		    createITextSection(serializer, fields, context, specCollection);
-		    createBindSection(serializer, fields, context);
-
-		    serializer.endTag("", ODK_TAG_MODEL);
-	        serializer.endTag("", ODK_TAG_HEAD);
-
-		    createBodySection(serializer, fields, context, specCollection);
-	        serializer.endTag("", ODK_TAG_HTML);
-	        serializer.endDocument();
-
-		    // temp throwaway code to pass odk xml to separate ODK app
-		    try {
-	            File outfile = new File(Collect.FORMS_PATH, MARTUS_CUSTOM_ODK_FORM);
-                FileOutputStream fos = new FileOutputStream(outfile);
-                fos.write(writer.toString().getBytes());
-                fos.flush();
-                fos.close();
-	        } catch (Exception e) {
-	            Log.e(AppConfig.LOG_LABEL, "problem writing odk xml file", e);
-	        }
-	    } catch (Exception e) {
-	        throw new RuntimeException(e);
-	    }
+		// stream straight to disk instead of holding the whole form in memory first; the form only
+		// replaces Martus.xml once it is complete
+		File tempFile = new File(dir, MARTUS_CUSTOM_ODK_FORM + ".tmp");
+		try {
+			// the serializer writes a character at a time, so buffer on the character side
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"), XML_OUTPUT_BUFFER_SIZE);
+			try {
+				serializer.setOutput(out);
+				serializer.startDocument("UTF-8", true);
+				serializer.startTag("", ODK_TAG_HTML);
+				serializer.attribute("", "xmlns", "http://www.w3.org/2002/xforms");
+				serializer.attribute("", "xmlns:h", "http://www.w3.org/1999/xhtml");
+				serializer.attribute("", "xmlns:ev", "http://www.w3.org/2001/xml-events");
+				serializer.attribute("", "xmlns:xsd", "http://www.w3.org/2001/XMLSchema");
+				serializer.attribute("", "xmlns:jr", "http://openrosa.org/javarosa");
+				serializer.startTag("", ODK_TAG_HEAD);
+				serializer.startTag("", ODK_TAG_TITLE);
+				serializer.text("Martus");
+				serializer.endTag("", ODK_TAG_TITLE);
+				serializer.startTag("", ODK_TAG_MODEL);
+
+				createInstanceSection(serializer, fields, context);
+				createITextSection(serializer, fields, context, specCollection);
+				createBindSection(serializer, fields, context);
+
+				serializer.endTag("", ODK_TAG_MODEL);
+				serializer.endTag("", ODK_TAG_HEAD);
+
+				createBodySection(serializer, fields, context, specCollection);
+				serializer.endTag("", ODK_TAG_HTML);
+				serializer.endDocument();
+			} finally {
+				out.close();
+			}
+			if (!tempFile.renameTo(file)) {
+				Log.e(AppConfig.LOG_LABEL, "problem replacing odk xml file");
+				return;
+			}
+			if (formKey != null)
+				writeFormCacheKey(keyFile, formKey);
+		} catch (IOException e) {
+			Log.e(AppConfig.LOG_LABEL, "problem writing odk xml file", e);
+			tempFile.delete();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Digest of everything the generated form depends on: the template's fields and reusable
+	 * choices, the locale the standard labels are taken from, the app build doing the generating,
+	 * and the settings written into the form, which so far is only the default author.
+	 */
+	private static String getFormCacheKey(Context context, FieldSpecCollection specs) {
+		try {
+			int versionCode = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(specs.toXml().getBytes("UTF-8"));
+			digest.update(context.getResources().getConfiguration().locale.toString().getBytes("UTF-8"));
+			digest.update(Integer.toString(versionCode).getBytes("UTF-8"));
+			digest.update(getDefaultAuthor(context).getBytes("UTF-8"));
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest.digest()) {
+				key.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+			}
+			return key.toString();
+		} catch (Exception e) {
+			Log.e(AppConfig.LOG_LABEL, "problem computing odk form cache key", e);
+			return null;
+		}
+	}
+
+	// anything read here has to go into getFormCacheKey, or a changed setting keeps the old form
+	private static String getDefaultAuthor(Context context) {
+		SharedPreferences mySettings = PreferenceManager.getDefaultSharedPreferences(context);
+		return mySettings.getString(SettingsActivity.KEY_AUTHOR, context.getString(R.string.default_author));
+	}
+
+	private static String readFormCacheKey(File keyFile) {
+		if (!keyFile.exists())
+			return null;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(keyFile), "UTF-8"));
+			try {
+				return reader.readLine();
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			Log.e(AppConfig.LOG_LABEL, "problem reading odk form cache key", e);
+			return null;
+		}
+	}
+
+	private static void writeFormCacheKey(File keyFile, String formKey) throws IOException {
+		keyFile.getParentFile().mkdirs();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(keyFile), "UTF-8");
+		try {
+			writer.write(formKey);
+		} finally {
+			writer.close();
+		}
 	}
 
 	private static void createInstanceSection(XmlSerializer serializer, FieldSpec[] fields, Context context) throws IOException
@@ -274,9 +356,7 @@ public class ODKUtils
 				} else if (field.getType().isBoolean()) {
 					serializer.text(STRING_FALSE);
 				} else if (field.getTag().equals(BulletinConstants.TAGAUTHOR)) {
-					SharedPreferences mySettings = PreferenceManager.getDefaultSharedPreferences(context);
-					String defaultAuthor = mySettings.getString(SettingsActivity.KEY_AUTHOR, context.getString(R.string.default_author));
-					serializer.text(defaultAuthor);
+					serializer.text(getDefaultAuthor(context));
 				}
 				serializer.endTag("", field.getTag());
 			}
@@ -489,65 +569,101 @@ public class ODKUtils
 	}
 
 	public static void populateBulletin(Bulletin bulletin, FormController formController)
+	{
+		// the generated form keeps every answer as a direct child of /data, so the answers can be
+		// read straight from the instance without stepping the form and building prompts
+		TreeElement root = formController.getFormDef().getMainInstance().getRoot();
+		if (isFlatMartusInstance(root)) {
+			populateBulletinFromInstance(bulletin, root);
+			return;
+		}
+		populateBulletinFromPrompts(bulletin, formController);
+	}
+
+	// package-private, like populateBulletinFromInstance, so tests can check both give the same bulletin
+	static void populateBulletinFromPrompts(Bulletin bulletin, FormController formController)
 	{
 		formController.getFormIndex();
 		formController.jumpToIndex(FormIndex.createBeginningOfFormIndex());
 
 		int event;
-		MultiCalendar beginDate = null;
-		MultiCalendar endDate = null;
+		DateRange dateRange = new DateRange();
 		while ((event =
 		        formController.stepToNextEvent(FormController.STEP_INTO_GROUP)) != FormEntryController.EVENT_END_OF_FORM) {
 		    if (event != FormEntryController.EVENT_QUESTION) {
 		        continue;
 		    } else {
-		        IAnswerData answer = formController.getQuestionPrompt().getAnswerValue();
 			    FormEntryPrompt questionPrompt = formController.getQuestionPrompt();
-		        String questionID = formController.getQuestionPrompt().getQuestion().getTextID();
+		        IAnswerData answer = questionPrompt.getAnswerValue();
+		        String questionID = questionPrompt.getQuestion().getTextID();
 			    Log.w(AppConfig.LOG_LABEL, " questionID = " + questionID);
-			    int dataType = questionPrompt.getDataType();
 		        if (answer != null) {
 			        String tag =  questionID.substring(6, questionID.length() - 6);
-			        String value = answer.getDisplayText();
-			        if (dataType == Constants.DATATYPE_DATE) {
-				        Date date = (Date)answer.getValue();
-				        value = DateUtils.format(date, DATE_FORMAT_MARTUS);
-				        Calendar cal = Calendar.getInstance();
-			            cal.setTime(date);
-				        cal.set(Calendar.HOUR_OF_DAY,12);
-				        if (tag.endsWith(DATE_RANGE_START_POSTFIX)) {
-					        beginDate = MultiCalendar.createFromGregorianYearMonthDay(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1, cal.get(Calendar.DAY_OF_MONTH));
-					        Log.w(AppConfig.LOG_LABEL, " beginDate is " + date);
-					        Log.w(AppConfig.LOG_LABEL, " beginDate MultiCalendarDate is " + beginDate);
-				        } else if (tag.endsWith(DATE_RANGE_END_POSTFIX)) {
-					        endDate = MultiCalendar.createFromGregorianYearMonthDay(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1, cal.get(Calendar.DAY_OF_MONTH));
-					        Log.w(AppConfig.LOG_LABEL, " endDate is " + date);
-					        Log.w(AppConfig.LOG_LABEL, " endDate MultiCalendarDate is " + endDate);
-				        }
-			        } else if (dataType == Constants.DATATYPE_CHOICE) {
-				        if (value.equals(ODKUtils.STRING_TRUE)) {
-					        value = FieldSpec.TRUESTRING;
-				        } else if (value.equals(ODKUtils.STRING_FALSE)) {
-					        value = FieldSpec.FALSESTRING;
-				        }
-			        }
-			        if (beginDate == null && endDate == null) {
-				        Log.w(AppConfig.LOG_LABEL, "setting normal bulletin field, with tag = " + tag);
-			            bulletin.set(tag, value);
-			        } else if (beginDate != null && endDate != null) {
-				        //set daterange
-				        tag = tag.substring(0, tag.length() - DATE_RANGE_END_POSTFIX.length());
-				        String myValue = MartusFlexidate.toBulletinFlexidateFormat(beginDate, endDate);
-				        Log.w(AppConfig.LOG_LABEL, " DateRange tag is " + tag + " with value of " + myValue);
-				        Log.w(AppConfig.LOG_LABEL, "beginDate is " + beginDate);
-				        Log.w(AppConfig.LOG_LABEL, "endDate is " + endDate);
-				        bulletin.set(tag, myValue);
-				        beginDate = null;
-				        endDate = null;
-			        }
+			        setBulletinField(bulletin, tag, questionPrompt.getDataType(), answer, dateRange);
 		        }
 		    }
 		}
 	}
 
+	private static boolean isFlatMartusInstance(TreeElement root) {
+		if (root == null || !ODK_TAG_DATA.equals(root.getName()))
+			return false;
+		for (int i = 0; i < root.getNumChildren(); i++) {
+			TreeElement child = root.getChildAt(i);
+			if (child.getNumChildren() > 0 && !ODK_TAG_META.equals(child.getName()))
+				return false;
+		}
+		return true;
+	}
+
+	static void populateBulletinFromInstance(Bulletin bulletin, TreeElement root) {
+		DateRange dateRange = new DateRange();
+		for (int i = 0; i < root.getNumChildren(); i++) {
+			TreeElement child = root.getChildAt(i);
+			if (child.getNumChildren() > 0 || !child.isRelevant())
+				continue;
+			IAnswerData answer = child.getValue();
+			if (answer != null)
+				setBulletinField(bulletin, child.getName(), child.dataType, answer, dateRange);
+		}
+	}
+
+	private static void setBulletinField(Bulletin bulletin, String tag, int dataType, IAnswerData answer, DateRange dateRange) {
+		String value = answer.getDisplayText();
+		if (dataType == Constants.DATATYPE_DATE) {
+			Date date = (Date)answer.getValue();
+			value = DateUtils.format(date, DATE_FORMAT_MARTUS);
+			Calendar cal = Calendar.getInstance();
+			cal.setTime(date);
+			cal.set(Calendar.HOUR_OF_DAY,12);
+			if (tag.endsWith(DATE_RANGE_START_POSTFIX)) {
+				dateRange.beginDate = MultiCalendar.createFromGregorianYearMonthDay(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1, cal.get(Calendar.DAY_OF_MONTH));
+			} else if (tag.endsWith(DATE_RANGE_END_POSTFIX)) {
+				dateRange.endDate = MultiCalendar.createFromGregorianYearMonthDay(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1, cal.get(Calendar.DAY_OF_MONTH));
+			}
+		} else if (dataType == Constants.DATATYPE_CHOICE) {
+			if (value.equals(ODKUtils.STRING_TRUE)) {
+				value = FieldSpec.TRUESTRING;
+			} else if (value.equals(ODKUtils.STRING_FALSE)) {
+				value = FieldSpec.FALSESTRING;
+			}
+		}
+		if (dateRange.beginDate == null && dateRange.endDate == null) {
+			bulletin.set(tag, value);
+		} else if (dateRange.beginDate != null && dateRange.endDate != null) {
+			//set daterange
+			tag = tag.substring(0, tag.length() - DATE_RANGE_END_POSTFIX.length());
+			String myValue = MartusFlexidate.toBulletinFlexidateFormat(dateRange.beginDate, dateRange.endDate);
+			Log.i(AppConfig.LOG_LABEL, " DateRange tag is " + tag + " with value of " + myValue);
+			bulletin.set(tag, myValue);
+			dateRange.beginDate = null;
+			dateRange.endDate = null;
+		}
+	}
+
+	private static class DateRange {
+		MultiCalendar beginDate;
+		MultiCalendar endDate;
+	}
+
 }
@@ -0,0 +1,106 @@
+package org.martus.android;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * Folds the progress of one or more uploads into a single progress notification, and only
+ * reposts it when the combined percentage has moved by MIN_PROGRESS_DELTA and MIN_INTERVAL_MILLIS
+ * have passed since the last post. Every post is a NotificationManager binder call that makes
+ * the system UI redraw, and chunks on a fast link arrive far more often than anyone can see.
+ *
+ * Each upload is weighted by its size, so a small bulletin finishing does not make several
+ * concurrent resends look nearly done.
+ */
+public class ProgressAggregator {
+
+    public static final int MIN_PROGRESS_DELTA = 2;
+    public static final long MIN_INTERVAL_MILLIS = 500;
+
+    private final NotificationHelper notificationHelper;
+    private final String subject;
+    private final Map<Object, Upload> uploads;
+    private long finishedWeight;
+    private int lastPostedProgress;
+    private long lastPostedAt;
+
+    public ProgressAggregator(NotificationHelper notificationHelper, String subject) {
+        this.notificationHelper = notificationHelper;
+        this.subject = subject;
+        uploads = new HashMap<Object, Upload>();
+        lastPostedProgress = 0;
+        lastPostedAt = 0;
+    }
+
+    /**
+     * @param weight the size of the upload, in any unit shared by every upload added
+     */
+    public synchronized void addUpload(Object key, long weight) {
+        uploads.put(key, new Upload(Math.max(1, weight)));
+    }
+
+    public synchronized void updateProgress(Object key, int progress) {
+        Upload upload = uploads.get(key);
+        if (null == upload || progress <= upload.progress)
+            return;
+        upload.progress = Math.min(100, progress);
+        postIfDue(false);
+    }
+
+    /**
+     * Counts the upload as complete, whether it succeeded or not, and shows the new total.
+     */
+    public synchronized void removeUpload(Object key) {
+        Upload upload = uploads.remove(key);
+        if (null == upload)
+            return;
+        finishedWeight += upload.weight;
+        if (!uploads.isEmpty())
+            postIfDue(true);
+    }
+
+    public synchronized int getCombinedProgress() {
+        long totalWeight = finishedWeight;
+        long doneWeight = finishedWeight * 100;
+        for (Upload upload : uploads.values()) {
+            totalWeight += upload.weight;
+            doneWeight += upload.weight * upload.progress;
+        }
+        if (0 == totalWeight)
+            return 0;
+        return (int)(doneWeight / totalWeight);
+    }
+
+    private void postIfDue(boolean force) {
+        int progress = getCombinedProgress();
+        if (progress == lastPostedProgress)
+            return;
+        long now = getTime();
+        if (!force && progress < 100) {
+            if (progress - lastPostedProgress < MIN_PROGRESS_DELTA || now - lastPostedAt < MIN_INTERVAL_MILLIS)
+                return;
+        }
+        lastPostedProgress = progress;
+        lastPostedAt = now;
+        postProgress(progress);
+    }
+
+    long getTime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    void postProgress(int progress) {
+        notificationHelper.updateProgress(subject, progress);
+    }
+
+    private static class Upload {
+        final long weight;
+        int progress;
+
+        Upload(long weight) {
+            this.weight = weight;
+        }
+    }
+}
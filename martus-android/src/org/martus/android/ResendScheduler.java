@@ -0,0 +1,153 @@
+package org.martus.android;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.martus.common.packet.UniversalId;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+/**
+ * Decides when ResendService should next run on its own, instead of waiting for the user to
+ * pick resend from the menu.
+ *
+ * Each bulletin that fails to send backs off exponentially from BASE_BACKOFF_MILLIS up to
+ * MAX_BACKOFF_MILLIS, with a random half of the delay as jitter so bulletins that failed
+ * together do not retry together. Only one alarm is ever set, for the earliest bulletin that is
+ * due, and the resend it starts also takes every bulletin due within BATCH_WINDOW_MILLIS of it.
+ * The alarm does not wake the device, so it rides along with the next wakeup that happens anyway.
+ *
+ * While there is no usable network nothing is scheduled at all. When a network comes back the
+ * backoffs are forgotten and everything is retried after RECONNECT_DELAY_MILLIS, which also lets
+ * a flapping connection settle. Zips over LARGE_ZIP_BYTES wait for an unmetered network when
+ * the resend was scheduled rather than asked for.
+ *
+ * Backoffs are only kept in memory; the attempt counts they grow from are in BulletinSendQueue.
+ */
+public class ResendScheduler {
+
+    public static final long BASE_BACKOFF_MILLIS = 30 * 1000;
+    public static final long MAX_BACKOFF_MILLIS = 60 * 60 * 1000;
+    public static final long BATCH_WINDOW_MILLIS = 60 * 1000;
+    public static final long RECONNECT_DELAY_MILLIS = 5 * 1000;
+    public static final long LARGE_ZIP_BYTES = 1024 * 1024;
+
+    public static final String EXTRA_SCHEDULED = "scheduled";
+
+    private final BulletinSendQueue sendQueue;
+    private final Map<String, Long> nextAttemptMillis;
+    private final Random random;
+
+    public ResendScheduler(BulletinSendQueue sendQueue) {
+        this(sendQueue, new Random());
+    }
+
+    ResendScheduler(BulletinSendQueue sendQueue, Random random) {
+        this.sendQueue = sendQueue;
+        this.random = random;
+        nextAttemptMillis = new HashMap<String, Long>();
+    }
+
+    public synchronized void recordSuccess(UniversalId uid) {
+        nextAttemptMillis.remove(uid.getLocalId());
+    }
+
+    public synchronized void recordFailure(UniversalId uid) {
+        BulletinSendQueue.Entry entry = sendQueue.getEntry(uid);
+        int attempts = (null == entry) ? 1 : entry.getAttempts();
+        nextAttemptMillis.put(uid.getLocalId(), getTime() + getBackoffMillis(attempts));
+    }
+
+    /**
+     * @return whether a scheduled resend should include uid, given it runs at nowMillis
+     */
+    public synchronized boolean isDue(UniversalId uid, long nowMillis) {
+        Long dueMillis = nextAttemptMillis.get(uid.getLocalId());
+        return null == dueMillis || dueMillis <= nowMillis + BATCH_WINDOW_MILLIS;
+    }
+
+    /**
+     * @return whether a zip of zipSize bytes should go out over the current network
+     */
+    public static boolean isSuitableNetwork(Context context, long zipSize) {
+        return zipSize < LARGE_ZIP_BYTES || NetworkUtilities.isActiveNetworkUnmetered(context);
+    }
+
+    long getBackoffMillis(int attempts) {
+        int doublings = Math.max(0, Math.min(attempts - 1, 16));
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << doublings);
+        long half = backoff / 2;
+        return half + (long)(random.nextDouble() * half);
+    }
+
+    long getTime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    public void onConnectivityChanged(Context context) {
+        if (!NetworkUtilities.isNetworkAvailable(context)) {
+            cancel(context);
+            return;
+        }
+        synchronized (this) {
+            nextAttemptMillis.clear();
+        }
+        if (canResend())
+            setAlarm(context, SystemClock.elapsedRealtime() + RECONNECT_DELAY_MILLIS);
+    }
+
+    /**
+     * Sets the alarm for the earliest bulletin still waiting to be sent, or cancels it if there
+     * is nothing to send or no network to send it over.
+     */
+    public void scheduleNext(Context context) {
+        if (!canResend() || !NetworkUtilities.isNetworkAvailable(context)) {
+            cancel(context);
+            return;
+        }
+        List<BulletinSendQueue.Entry> pending = sendQueue.getPendingEntries();
+        long nowMillis = SystemClock.elapsedRealtime();
+        long earliestMillis = Long.MAX_VALUE;
+        synchronized (this) {
+            for (BulletinSendQueue.Entry entry : pending) {
+                Long dueMillis = nextAttemptMillis.get(entry.getUniversalId().getLocalId());
+                earliestMillis = Math.min(earliestMillis, (null == dueMillis) ? nowMillis : dueMillis);
+            }
+        }
+        if (Long.MAX_VALUE == earliestMillis) {
+            cancel(context);
+            return;
+        }
+        setAlarm(context, Math.max(earliestMillis, nowMillis + RECONNECT_DELAY_MILLIS));
+    }
+
+    public void cancel(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(getResendIntent(context));
+    }
+
+    private boolean canResend() {
+        return AppConfig.getInstance().getCrypto().hasKeyPair() && !sendQueue.getPendingEntries().isEmpty();
+    }
+
+    private void setAlarm(Context context, long triggerAtMillis) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, triggerAtMillis, getResendIntent(context));
+    }
+
+    private static PendingIntent getResendIntent(Context context) {
+        SharedPreferences serverSettings = context.getSharedPreferences(BaseActivity.PREFS_SERVER_IP, Context.MODE_PRIVATE);
+        Intent resendService = new Intent(context, ResendService.class);
+        resendService.putExtra(SettingsActivity.KEY_SERVER_IP, serverSettings.getString(SettingsActivity.KEY_SERVER_IP, ""));
+        resendService.putExtra(SettingsActivity.KEY_SERVER_PUBLIC_KEY, serverSettings.getString(SettingsActivity.KEY_SERVER_PUBLIC_KEY, ""));
+        resendService.putExtra(EXTRA_SCHEDULED, true);
+        return PendingIntent.getService(context, 0, resendService, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
@@ -1,23 +1,39 @@
 package org.martus.android;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
 
 import org.martus.clientside.MobileClientSideNetworkGateway;
-import org.martus.common.bulletin.Bulletin;
-import org.martus.common.bulletin.BulletinZipImporter;
+import org.martus.common.crypto.MartusCrypto;
 import org.martus.common.crypto.MartusSecurity;
+import org.martus.common.packet.BulletinHeaderPacket;
+import org.martus.common.packet.UniversalId;
 
 import android.app.IntentService;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
  * @author roms
  *         Date: 11/1/12
  */
-public class ResendService extends IntentService implements ProgressUpdater {
-    private NotificationHelper mNH;
+public class ResendService extends IntentService {
+
+    public static final String DEFAULT_RESEND_WORKER_COUNT = "2";
+    private static final int RESEND_PROGRESS_NOTIFICATION_ID = 1;
 
     public ResendService() {
         super("ResendService");
@@ -37,32 +53,191 @@ public class ResendService extends IntentService implements ProgressUpdater {
 
         final String serverIP = intent.getStringExtra(SettingsActivity.KEY_SERVER_IP);
         final String serverPublicKey = intent.getStringExtra(SettingsActivity.KEY_SERVER_PUBLIC_KEY);
+        final boolean isScheduled = intent.getBooleanExtra(ResendScheduler.EXTRA_SCHEDULED, false);
+        final ResendScheduler scheduler = AppConfig.getInstance().getResendScheduler();
+        if (isScheduled && !NetworkUtilities.isNetworkAvailable(this)) {
+            // ConnectivityChangeReceiver schedules the next try once a network is back
+            scheduler.cancel(this);
+            return;
+        }
         final MobileClientSideNetworkGateway mGateway = MobileClientSideNetworkGateway.buildGateway(serverIP, serverPublicKey,((MartusApplication)getApplication()).getTransport());
 
+        final List<ResendBulletinRunnable> resends = getBulletinsToResend(mGateway, isScheduled ? scheduler : null);
+        if (resends.isEmpty()) {
+            scheduler.scheduleNext(this);
+            return;
+        }
+
+        // smallest first, so the most bulletins get through per minute of connectivity
+        Collections.sort(resends, new SmallestFileFirstComparator());
+
+        // one progress notification for all of them; each bulletin still gets its own result
+        final NotificationHelper progressNotification = new NotificationHelper(getApplicationContext(), RESEND_PROGRESS_NOTIFICATION_ID);
+        UploadBulletinTask.createInitialNotification(progressNotification, getApplicationContext());
+        final ProgressAggregator progress = new ProgressAggregator(progressNotification,
+                getApplicationContext().getString(R.string.starting_send_notification));
+
+        final int workerCount = Math.min(getResendWorkerCount(), resends.size());
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+        for (ResendBulletinRunnable resend : resends) {
+            progress.addUpload(resend, resend.getZipFile().length());
+            resend.setProgressAggregator(progress);
+            workers.execute(resend);
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Log.e(AppConfig.LOG_LABEL, "interrupted resending bulletins", e);
+            workers.shutdownNow();
+        }
+        progressNotification.cancel();
+        scheduler.scheduleNext(this);
+    }
+
+    /**
+     * Everything in the send queue journal that is not already being sent by this process,
+     * plus any zips in failed_bulletins that predate the journal. A scheduled resend leaves out
+     * bulletins still backing off, and large zips while the network is metered.
+     *
+     * @param scheduler null if the user asked for the resend, so everything goes
+     */
+    private List<ResendBulletinRunnable> getBulletinsToResend(MobileClientSideNetworkGateway gateway, ResendScheduler scheduler) {
+        final BulletinSendQueue sendQueue = AppConfig.getInstance().getSendQueue();
+        final List<ResendBulletinRunnable> resends = new ArrayList<ResendBulletinRunnable>();
+        final Set<File> journaledFiles = new HashSet<File>();
+
+        final long nowMillis = SystemClock.elapsedRealtime();
+
+        for (BulletinSendQueue.Entry entry : sendQueue.getPendingEntries()) {
+            journaledFiles.add(entry.getZipFile().getAbsoluteFile());
+            UniversalId uid = entry.getUniversalId();
+            if (null != scheduler) {
+                if (!scheduler.isDue(uid, nowMillis))
+                    continue;
+                if (!ResendScheduler.isSuitableNetwork(this, entry.getZipFile().length()))
+                    continue;
+            }
+            if (sendQueue.markInFlight(uid))
+                resends.add(new ResendBulletinRunnable(entry.getZipFile(), uid, gateway));
+        }
+
         final File cacheDir = getApplicationContext().getCacheDir().getParentFile();
         File failedDir = new File (cacheDir, UploadBulletinTask.FAILED_BULLETINS_DIR);
-        if (failedDir.exists()) {
-            final String[] names = failedDir.list(new ZipFileFilter());
-            for (String name : names) {
-                try {
-                    final MartusSecurity mCrypto = BaseActivity.cloneSecurity(AppConfig.getInstance().getCrypto());
-                    Bulletin tempBulletin = new Bulletin(mCrypto);
-                    File zipFile = new File(failedDir, name);
-                    BulletinZipImporter.loadFromFile(tempBulletin, zipFile, mCrypto);
-                    mNH = new NotificationHelper(getApplicationContext(), tempBulletin.getUniversalId().hashCode());
-                    UploadBulletinTask.createInitialNotification(mNH, getApplicationContext());
-                    String result = UploadBulletinTask.doSend(tempBulletin.getUniversalId(), zipFile, mGateway, mCrypto, this, getApplicationContext());
-                    mNH.completed(result);
-                } catch (Exception e) {
-                    Log.e(AppConfig.LOG_LABEL, "problem reading zipped bulletin", e);
+        final File[] zipFiles = failedDir.listFiles(new ZipFileFilter());
+        if (null != zipFiles) {
+            for (File zipFile : zipFiles) {
+                if (journaledFiles.contains(zipFile.getAbsoluteFile()))
+                    continue;
+                if (null != scheduler && !ResendScheduler.isSuitableNetwork(this, zipFile.length()))
+                    continue;
+                resends.add(new ResendBulletinRunnable(zipFile, null, gateway));
+            }
+        }
+        return resends;
+    }
+
+    private int getResendWorkerCount() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        try {
+            int count = Integer.valueOf(settings.getString(SettingsActivity.KEY_RESEND_WORKER_COUNT, DEFAULT_RESEND_WORKER_COUNT));
+            return Math.max(1, count);
+        } catch (NumberFormatException e) {
+            return Integer.valueOf(DEFAULT_RESEND_WORKER_COUNT);
+        }
+    }
+
+    private class ResendBulletinRunnable implements Runnable, ProgressUpdater {
+        private final File zipFile;
+        private final MobileClientSideNetworkGateway gateway;
+        private UniversalId uid;
+        private ProgressAggregator progress;
+
+        /**
+         * @param uid the journaled id of the bulletin, or null if it has to be read from the zip
+         */
+        ResendBulletinRunnable(File zipFile, UniversalId uid, MobileClientSideNetworkGateway gateway) {
+            this.zipFile = zipFile;
+            this.uid = uid;
+            this.gateway = gateway;
+        }
+
+        File getZipFile() {
+            return zipFile;
+        }
+
+        void setProgressAggregator(ProgressAggregator progress) {
+            this.progress = progress;
+        }
+
+        @Override
+        public void run() {
+            try {
+                resend();
+            } finally {
+                progress.removeUpload(this);
+            }
+        }
+
+        private void resend() {
+            final SharedSigner sharedSigner = AppConfig.getInstance().getSharedSigner();
+            final MartusSecurity mCrypto = sharedSigner.acquire(AppConfig.getInstance().getCrypto());
+            if (null == mCrypto) {
+                Log.e(AppConfig.LOG_LABEL, "no key pair to resend bulletin with");
+                if (null != uid)
+                    AppConfig.getInstance().getSendQueue().clearInFlight(uid);
+                return;
+            }
+            try {
+                if (null == uid) {
+                    long startMillis = SystemClock.elapsedRealtime();
+                    uid = readUniversalId(zipFile, mCrypto);
+                    AppConfig.getInstance().getSendMetrics().getRecord(uid).addStageTime(SendMetrics.STAGE_READ_HEADER,
+                            SystemClock.elapsedRealtime() - startMillis);
                 }
+            } catch (Exception e) {
+                Log.e(AppConfig.LOG_LABEL, "problem reading zipped bulletin", e);
+                sharedSigner.release(mCrypto);
+                return;
             }
+            AppConfig.getInstance().getSendMetrics().getRecord(uid).setSource("resend");
+            // doSend releases mCrypto
+            String result = UploadBulletinTask.doSend(uid, zipFile, gateway, mCrypto, this, getApplicationContext());
+            NotificationHelper resultNotification = new NotificationHelper(getApplicationContext(), uid.hashCode());
+            resultNotification.setTitle(UploadBulletinTask.getNotificationTitle(getApplicationContext()));
+            resultNotification.completed(result);
+        }
+
+        @Override
+        public void showProgress(int value) {
+            progress.updateProgress(this, value);
         }
     }
 
-    @Override
-    public void showProgress(int value) {
-        mNH.updateProgress(getApplicationContext().getString(R.string.starting_send_notification), value);
+    /**
+     * Reads just the bulletin header packet, which is neither encrypted nor compressed beyond
+     * the zip entry itself, instead of importing and decrypting every packet of the bulletin.
+     */
+    static UniversalId readUniversalId(File zipFile, MartusCrypto crypto) throws Exception {
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            return BulletinHeaderPacket.loadFromZipFile(zip, crypto).getUniversalId();
+        } finally {
+            zip.close();
+        }
     }
 
+    private static class SmallestFileFirstComparator implements Comparator<ResendBulletinRunnable> {
+        @Override
+        public int compare(ResendBulletinRunnable first, ResendBulletinRunnable second) {
+            File firstFile = first.getZipFile();
+            File secondFile = second.getZipFile();
+            long difference = firstFile.length() - secondFile.length();
+            if (difference < 0)
+                return -1;
+            if (difference > 0)
+                return 1;
+            return firstFile.getName().compareTo(secondFile.getName());
+        }
+    }
 }
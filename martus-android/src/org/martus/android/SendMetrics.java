@@ -0,0 +1,169 @@
+package org.martus.android;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.martus.common.packet.UniversalId;
+
+import android.util.Log;
+
+/**
+ * Collects how long each stage of sending a bulletin took, how many bytes and chunks went out,
+ * how often the upload had to resync, and a histogram of putBulletinChunk round trips. When a
+ * send finishes its numbers are appended as one line to METRICS_FILE, which is rolled over to
+ * METRICS_FILE.1 once it passes MAX_FILE_BYTES, so it can be pulled off a device in the field.
+ *
+ * Nothing in the line identifies the bulletin beyond its local id.
+ */
+public class SendMetrics {
+
+    public static final String METRICS_FILE = "send_metrics.log";
+    public static final long MAX_FILE_BYTES = 256 * 1024;
+
+    public static final String STAGE_SAVE = "save";
+    public static final String STAGE_ZIP = "zip";
+    public static final String STAGE_READ_HEADER = "read_header";
+    public static final String STAGE_OFFSET = "offset";
+    public static final String STAGE_ENCODE = "encode";
+    public static final String STAGE_UPLOAD = "upload";
+
+    public static final String COUNT_ZIP_BYTES = "zip_bytes";
+    public static final String COUNT_RESYNCS = "resyncs";
+    public static final String COUNT_RETRIES = "retries";
+
+    private static final long[] RTT_BUCKET_LIMITS_MILLIS = {100, 250, 500, 1000, 2000, 5000, 10000};
+    private static final SimpleDateFormat TIMESTAMP_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+
+    private final File metricsFile;
+    private final Map<String, Record> records;
+
+    public SendMetrics(File directory) {
+        metricsFile = new File(directory, METRICS_FILE);
+        records = new HashMap<String, Record>();
+    }
+
+    /**
+     * @return the metrics being collected for the send of uid, started if there are none yet
+     */
+    public synchronized Record getRecord(UniversalId uid) {
+        Record record = records.get(uid.getLocalId());
+        if (null == record) {
+            record = new Record();
+            records.put(uid.getLocalId(), record);
+        }
+        return record;
+    }
+
+    /**
+     * Writes out what was collected for the send of uid and starts afresh for its next attempt.
+     */
+    public void finish(UniversalId uid, String result) {
+        Record record;
+        synchronized (this) {
+            record = records.remove(uid.getLocalId());
+        }
+        if (null == record)
+            return;
+        append(" bulletin=" + uid.getLocalId() + " result=" + result + record.format());
+    }
+
+    /**
+     * Deletes the metrics file and the one it rolled over to.
+     */
+    public synchronized void clear() {
+        records.clear();
+        metricsFile.delete();
+        new File(metricsFile.getPath() + ".1").delete();
+    }
+
+    // SimpleDateFormat is not thread safe, so the timestamp is only formatted under this lock
+    private synchronized void append(String line) {
+        try {
+            if (metricsFile.length() > MAX_FILE_BYTES) {
+                File previous = new File(metricsFile.getPath() + ".1");
+                previous.delete();
+                metricsFile.renameTo(previous);
+            }
+            Writer writer = new OutputStreamWriter(new FileOutputStream(metricsFile, true), "UTF-8");
+            try {
+                writer.write(TIMESTAMP_FORMAT.format(new Date()));
+                writer.write(line);
+                writer.write("\n");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e(AppConfig.LOG_LABEL, "problem writing send metrics", e);
+        }
+    }
+
+    public static class Record {
+        private final Map<String, Long> stageMillis;
+        private final Map<String, Long> counts;
+        private final long[] roundTripBuckets;
+        private String source;
+        private long chunks;
+        private long chunkBytes;
+        private long maxRoundTripMillis;
+
+        Record() {
+            stageMillis = new LinkedHashMap<String, Long>();
+            counts = new LinkedHashMap<String, Long>();
+            roundTripBuckets = new long[RTT_BUCKET_LIMITS_MILLIS.length + 1];
+            source = "send";
+        }
+
+        public synchronized void setSource(String source) {
+            this.source = source;
+        }
+
+        public synchronized void addStageTime(String stage, long millis) {
+            Long sofar = stageMillis.get(stage);
+            stageMillis.put(stage, (null == sofar) ? millis : sofar + millis);
+        }
+
+        public synchronized void addCount(String counter, long amount) {
+            Long sofar = counts.get(counter);
+            counts.put(counter, (null == sofar) ? amount : sofar + amount);
+        }
+
+        public synchronized void recordChunk(int bytes, long roundTripMillis) {
+            ++chunks;
+            chunkBytes += bytes;
+            maxRoundTripMillis = Math.max(maxRoundTripMillis, roundTripMillis);
+            int bucket = 0;
+            while (bucket < RTT_BUCKET_LIMITS_MILLIS.length && roundTripMillis >= RTT_BUCKET_LIMITS_MILLIS[bucket])
+                ++bucket;
+            ++roundTripBuckets[bucket];
+        }
+
+        synchronized String format() {
+            StringBuilder line = new StringBuilder();
+            line.append(" source=").append(source);
+            for (Map.Entry<String, Long> stage : stageMillis.entrySet())
+                line.append(' ').append(stage.getKey()).append("_ms=").append(stage.getValue());
+            for (Map.Entry<String, Long> count : counts.entrySet())
+                line.append(' ').append(count.getKey()).append('=').append(count.getValue());
+            line.append(" chunks=").append(chunks);
+            line.append(" chunk_bytes=").append(chunkBytes);
+            line.append(" rtt_max_ms=").append(maxRoundTripMillis);
+            line.append(" rtt_ms=");
+            for (int i = 0; i < roundTripBuckets.length; ++i) {
+                if (i > 0)
+                    line.append(',');
+                line.append(i < RTT_BUCKET_LIMITS_MILLIS.length ? "<" + RTT_BUCKET_LIMITS_MILLIS[i] : ">=" + RTT_BUCKET_LIMITS_MILLIS[i - 1]);
+                line.append(':').append(roundTripBuckets[i]);
+            }
+            return line.toString();
+        }
+    }
+}
@@ -31,6 +31,14 @@ public class SettingsActivity extends PreferenceActivity implements SharedPrefer
     public static final String KEY_SERVER_IP = "server_ip_preference";
     public static final String KEY_AUTHOR = "author_preference";
     public static final String KEY_WIFI_ONLY = "wifi_only_preference";
+    public static final String KEY_PIPELINED_SEND = "pipelined_send_preference";
+    public static final String KEY_RESEND_WORKER_COUNT = "resend_workers_preference";
+    public static final String KEY_ADAPTIVE_CHUNK_SIZE = "adaptive_chunk_size_preference";
+    public static final String KEY_PREFETCH_CHUNKS = "prefetch_chunks_preference";
+    public static final String KEY_COMPRESS_ATTACHMENTS = "compress_attachments_preference";
+    public static final String KEY_IMAGE_MAX_DIMENSION = "image_max_dimension_preference";
+    public static final String KEY_IMAGE_QUALITY = "image_quality_preference";
+    public static final String KEY_STRIP_IMAGE_METADATA = "strip_image_metadata_preference";
     public static final String KEY_DESKTOP_PUBLIC_KEY = "desktop_public_keystring";
     public static final String KEY_SERVER_PUBLIC_KEY = "server_public_keystring";
     public static final String KEY_KEY_PAIR = "key_pair";
@@ -150,7 +158,10 @@ public class SettingsActivity extends PreferenceActivity implements SharedPrefer
             } else if (key.equals(KEY_USE_ZAWGYI)) {
 	            boolean useZawgyi = sharedPreferences.getBoolean(key, false);
 	            confirmLanguage(useZawgyi);
-            } else if (key.equals(KEY_WIFI_ONLY)) {
+            } else if (key.equals(KEY_WIFI_ONLY) || key.equals(KEY_PIPELINED_SEND) || key.equals(KEY_RESEND_WORKER_COUNT)
+                    || key.equals(KEY_ADAPTIVE_CHUNK_SIZE) || key.equals(KEY_PREFETCH_CHUNKS)
+                    || key.equals(KEY_COMPRESS_ATTACHMENTS) || key.equals(KEY_IMAGE_MAX_DIMENSION)
+                    || key.equals(KEY_IMAGE_QUALITY) || key.equals(KEY_STRIP_IMAGE_METADATA)) {
                 //do nothing
 /*            } else if (key.equals(KEY_NAVIGATION)) {
 	            final String navigationValue = sharedPreferences.getString(key, "?");
@@ -0,0 +1,61 @@
+package org.martus.android;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.martus.common.crypto.MartusSecurity;
+
+/**
+ * Hands out one copy of the logged in account's key pair to every upload and resend, instead of
+ * each of them parsing its own copy with cloneSecurity. The copy outlives a logout so sends that
+ * are under way can finish, and its key pair is wiped when the last user releases it.
+ *
+ * Sharing is safe because the gateway signs requests with createSignatureOfVectorOfStrings,
+ * which is synchronized, and signature checks build a new engine on every call.
+ */
+public class SharedSigner {
+
+    private final Map<MartusSecurity, Integer> userCounts;
+    private MartusSecurity current;
+
+    public SharedSigner() {
+        userCounts = new IdentityHashMap<MartusSecurity, Integer>();
+    }
+
+    /**
+     * @return the shared copy of original's key pair, or null if original has no key pair;
+     *         every successful acquire must be matched by a release
+     */
+    public synchronized MartusSecurity acquire(MartusSecurity original) {
+        if (!original.hasKeyPair())
+            return null;
+        if (null == current || !current.getPublicKeyString().equals(original.getPublicKeyString())) {
+            // a different account logged in; the old copy is wiped once its last user is done
+            MartusSecurity copy = BaseActivity.cloneSecurity(original);
+            if (null == copy)
+                return null;
+            current = copy;
+        }
+        Integer count = userCounts.get(current);
+        userCounts.put(current, (null == count) ? 1 : count + 1);
+        return current;
+    }
+
+    /**
+     * Wipes the key pair if this was its last user. A signer that did not come from acquire is
+     * wiped straight away.
+     */
+    public synchronized void release(MartusSecurity signer) {
+        if (null == signer)
+            return;
+        Integer count = userCounts.get(signer);
+        if (null != count && count > 1) {
+            userCounts.put(signer, count - 1);
+            return;
+        }
+        userCounts.remove(signer);
+        if (signer == current)
+            current = null;
+        signer.clearKeyPair();
+    }
+}
@@ -5,16 +5,19 @@ import java.io.FileInputStream;
 import java.io.IOException;
 
 import org.martus.clientside.MobileClientSideNetworkGateway;
+import org.martus.clientside.MobileClientSideNetworkGateway.SignedBulletinChunk;
 import org.martus.common.MartusUtilities;
 import org.martus.common.crypto.MartusCrypto;
 import org.martus.common.crypto.MartusSecurity;
 import org.martus.common.network.NetworkInterfaceConstants;
 import org.martus.common.network.NetworkResponse;
 import org.martus.common.packet.UniversalId;
-import org.martus.util.StreamableBase64;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.text.format.Time;
 import android.util.Log;
 
@@ -26,14 +29,20 @@ public class UploadBulletinTask extends AsyncTask<Object, Integer, String> imple
 
     public static final String BULLETIN_SEND_COMPLETED_BROADCAST = "send_completed";
     public static final String FAILED_BULLETINS_DIR = "failed_bulletins";
+    public static final String PACKAGING_FAILED = "packaging failed";
+    private static final int MAX_ADAPTIVE_CHUNK_RETRIES = 5;
 
     private NotificationHelper mNotificationHelper;
+    private ProgressAggregator mProgressAggregator;
+    private int lastPublishedProgress = -1;
     private BulletinSender sender;
     private MartusApplication myApplication;
 
     public UploadBulletinTask(MartusApplication application, BulletinSender sender, UniversalId bulletinId) {
         myApplication = application;
         mNotificationHelper = new NotificationHelper(myApplication.getApplicationContext(), bulletinId.hashCode());
+        mProgressAggregator = new ProgressAggregator(mNotificationHelper, myApplication.getString(R.string.bulletin_sending_progress));
+        mProgressAggregator.addUpload(this, 1);
         this.sender = sender;
     }
 
@@ -41,21 +50,80 @@ public class UploadBulletinTask extends AsyncTask<Object, Integer, String> imple
     protected String doInBackground(Object... params) {
 
         final UniversalId uid = (UniversalId)params[0];
-        final File zippedFile = (File)params[1];
         final MobileClientSideNetworkGateway gateway = (MobileClientSideNetworkGateway)params[2];
         final MartusSecurity signer = (MartusSecurity)params[3];
 
+        if (params[1] instanceof BulletinChunkPipe)
+            return doPipelinedSend(uid, (BulletinChunkPipe)params[1], gateway, signer, this, myApplication);
 
+        final File zippedFile = (File)params[1];
         return doSend(uid, zippedFile, gateway, signer, this, myApplication);
     }
 
+    /**
+     * Sends chunks as the ZipBulletinTask feeding the pipe produces them. If the server refuses
+     * the streamed upload or it breaks part way, the send is finished from the completed zip
+     * file through doSend. The streamed chunks are not journaled, since all but the last carry a
+     * provisional size, so the journaled offset is cleared first and doSend asks the server where
+     * to resume via getOffsetToStartUploading. If the zip could not be made, nothing is sent and
+     * PACKAGING_FAILED is returned.
+     */
+    public static String doPipelinedSend(UniversalId uid, BulletinChunkPipe pipe, MobileClientSideNetworkGateway gateway,
+                                         MartusSecurity signer, ProgressUpdater updater, Context context) {
+        final SendMetrics sendMetrics = AppConfig.getInstance().getSendMetrics();
+        final BulletinSendQueue sendQueue = AppConfig.getInstance().getSendQueue();
+        // keeps resends off the bulletin once its zip is complete, until doSend is done with it
+        sendQueue.markInFlight(uid);
+        String result = null;
+        long startMillis = SystemClock.elapsedRealtime();
+        try {
+            if (NetworkUtilities.isNetworkAvailable(context))
+                result = uploadBulletinFromPipe(uid, pipe, gateway, signer, updater);
+        } catch (Exception e) {
+            Log.e(AppConfig.LOG_LABEL, "problem with pipelined upload, will retry from zip file", e);
+        } finally {
+            pipe.abandon();
+            sendMetrics.getRecord(uid).addStageTime(SendMetrics.STAGE_UPLOAD, SystemClock.elapsedRealtime() - startMillis);
+        }
+
+        File zippedFile = pipe.awaitZipFile();
+        if (null == zippedFile) {
+            sendQueue.clearInFlight(uid);
+            AppConfig.getInstance().getSharedSigner().release(signer);
+            sendMetrics.finish(uid, PACKAGING_FAILED);
+            return PACKAGING_FAILED;
+        }
+        if ((null != result) && (result.equals(NetworkInterfaceConstants.OK))) {
+            zippedFile.delete();
+            sendQueue.remove(uid);
+            AppConfig.getInstance().getSharedSigner().release(signer);
+            AppConfig.getInstance().getResendScheduler().recordSuccess(uid);
+            sendMetrics.finish(uid, result);
+            return result;
+        }
+        // recordZipped journaled offset 0, but the server may already have some of the chunks
+        sendQueue.clearConfirmedOffset(uid);
+        return doSend(uid, zippedFile, gateway, signer, updater, context);
+    }
+
     public static String doSend(UniversalId uid, File zippedFile, MobileClientSideNetworkGateway gateway,
                                 MartusSecurity signer, ProgressUpdater updater, Context context) {
         String result = null;
+        final BulletinSendQueue sendQueue = AppConfig.getInstance().getSendQueue();
+        sendQueue.markInFlight(uid);
+        final long startMillis = SystemClock.elapsedRealtime();
 
         try {
-	        if (NetworkUtilities.isNetworkAvailable(context))
-                result = uploadBulletinZipFile(uid, zippedFile, gateway, signer, updater);
+	        if (NetworkUtilities.isNetworkAvailable(context)) {
+                if (null != zippedFile)
+                    sendQueue.recordAttempt(uid, zippedFile);
+                final SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+                AdaptiveChunkSizer sizer = null;
+                if (settings.getBoolean(SettingsActivity.KEY_ADAPTIVE_CHUNK_SIZE, false))
+                    sizer = new AdaptiveChunkSizer();
+                final boolean prefetch = settings.getBoolean(SettingsActivity.KEY_PREFETCH_CHUNKS, false);
+                result = uploadBulletinZipFile(uid, zippedFile, gateway, signer, updater, sendQueue, sizer, prefetch);
+            }
         } catch (MartusUtilities.FileTooLargeException e) {
             Log.e(AppConfig.LOG_LABEL, "file too large to upload", e);
             result = e.getMessage();
@@ -72,6 +140,7 @@ public class UploadBulletinTask extends AsyncTask<Object, Integer, String> imple
             if (null != zippedFile) {
                 if ((null != result) && (result.equals(NetworkInterfaceConstants.OK))) {
                     zippedFile.delete();
+                    sendQueue.remove(uid);
                 } else {
                     if (zippedFile.getParentFile().equals(context.getCacheDir().getParentFile())) {
                         File failedBulletinsDir = new File (context.getCacheDir().getParent(), FAILED_BULLETINS_DIR);
@@ -81,12 +150,26 @@ public class UploadBulletinTask extends AsyncTask<Object, Integer, String> imple
                         if (!successfulMove) {
                             Log.e(AppConfig.LOG_LABEL, "problem moving failed bulletin to failed directory");
                             result = "problem moving failed bulletin";
+                        } else {
+                            sendQueue.recordMoved(uid, movedFile);
                         }
                     }
                 }
             }
+            sendQueue.flush();
+            sendQueue.clearInFlight(uid);
         }
-        signer.clearKeyPair();
+        AppConfig.getInstance().getSharedSigner().release(signer);
+        final ResendScheduler resendScheduler = AppConfig.getInstance().getResendScheduler();
+        if (NetworkInterfaceConstants.OK.equals(result)) {
+            resendScheduler.recordSuccess(uid);
+        } else {
+            resendScheduler.recordFailure(uid);
+            resendScheduler.scheduleNext(context);
+        }
+        final SendMetrics sendMetrics = AppConfig.getInstance().getSendMetrics();
+        sendMetrics.getRecord(uid).addStageTime(SendMetrics.STAGE_UPLOAD, SystemClock.elapsedRealtime() - startMillis);
+        sendMetrics.finish(uid, String.valueOf(result));
         return result;
     }
 
@@ -98,11 +181,15 @@ public class UploadBulletinTask extends AsyncTask<Object, Integer, String> imple
     }
 
     public static void createInitialNotification(NotificationHelper notificationHelper, Context context) {
+        notificationHelper.createNotification(getNotificationTitle(context),
+                context.getString(R.string.starting_send_notification));
+    }
+
+    public static String getNotificationTitle(Context context) {
         final Time now = new Time();
         now.setToNow();
         final String timeAsTitle = now.format("%T");
-        notificationHelper.createNotification(context.getString(R.string.notification_title, timeAsTitle),
-                context.getString(R.string.starting_send_notification));
+        return context.getString(R.string.notification_title, timeAsTitle);
     }
 
     @Override
@@ -122,7 +209,7 @@ public class UploadBulletinTask extends AsyncTask<Object, Integer, String> imple
         super.onProgressUpdate(progress);
         if (null != sender) {
             sender.onProgressUpdate(progress[0]);
-            mNotificationHelper.updateProgress(myApplication.getString(R.string.bulletin_sending_progress),   progress[0]);
+            mProgressAggregator.updateProgress(this, progress[0]);
         }
     }
 
@@ -130,39 +217,193 @@ public class UploadBulletinTask extends AsyncTask<Object, Integer, String> imple
         		throws
                     MartusUtilities.FileTooLargeException, IOException, MartusCrypto.MartusSignatureException
     {
+        return uploadBulletinZipFile(uid, tempFile, gateway, crypto, fileSender, null, null, false);
+    }
+
+    /**
+     * @param sendQueue if not null, the upload starts from the offset journaled there without asking
+     *                  the server, and each confirmed chunk is journaled
+     * @param sizer if not null, chunk sizes follow the sizer instead of CLIENT_MAX_CHUNK_SIZE, and a
+     *              chunk the server could not be reached for is retried (smaller) after resyncing
+     *              the offset, up to MAX_ADAPTIVE_CHUNK_RETRIES times in a row
+     * @param prefetch true to read, encode and sign each chunk in the background while the one
+     *                 before it is being sent; only used when there is no sizer, since the sizer
+     *                 picks each chunk's size from the answer to the one before it
+     */
+    public static String uploadBulletinZipFile(UniversalId uid, File tempFile, MobileClientSideNetworkGateway gateway, MartusCrypto crypto, ProgressUpdater fileSender,
+                                               BulletinSendQueue sendQueue, AdaptiveChunkSizer sizer, boolean prefetch)
+        		throws
+                    MartusUtilities.FileTooLargeException, IOException, MartusCrypto.MartusSignatureException
+    {
+        final SendMetrics.Record metrics = AppConfig.getInstance().getSendMetrics().getRecord(uid);
         final int totalSize = MartusUtilities.getCappedFileLength(tempFile);
+        int journaledOffset = (null == sendQueue) ? -1 : sendQueue.getConfirmedOffset(uid, tempFile);
+        // an offset at the end means the final chunk went out but its answer was never journaled
+        boolean usingJournaledOffset = (journaledOffset >= 0) && (journaledOffset < totalSize);
+        int offset = usingJournaledOffset ? journaledOffset : getOffsetToStartUploading(uid, tempFile, gateway, crypto, metrics, false);
+        ChunkPrefetcher prefetcher = null;
+        BulletinChunkEncoder encoder = null;
+        FileInputStream inputStream = null;
+        if (prefetch && null == sizer) {
+            prefetcher = new ChunkPrefetcher(uid, tempFile, totalSize, crypto, metrics);
+            prefetcher.seek(offset);
+        } else {
+            encoder = new BulletinChunkEncoder(NetworkInterfaceConstants.CLIENT_MAX_CHUNK_SIZE);
+            inputStream = openAtOffset(tempFile, offset);
+        }
+        String authorId = uid.getAccountId();
+        String bulletinLocalId = uid.getLocalId();
+        String result = null;
+        int consecutiveFailures = 0;
+        try {
+            while(true)
+            {
+                int chunkSize;
+                NetworkResponse response;
+                long startMillis;
+                if (null != prefetcher) {
+                    SignedBulletinChunk chunk = prefetcher.take();
+                    if (null == chunk)
+                        break;
+                    chunkSize = chunk.getChunkSize();
+                    startMillis = SystemClock.elapsedRealtime();
+                    response = gateway.putSignedBulletinChunk(chunk);
+                } else {
+                    int maxChunkSize = NetworkInterfaceConstants.CLIENT_MAX_CHUNK_SIZE;
+                    if (null != sizer) {
+                        maxChunkSize = sizer.getChunkSize();
+                        encoder.ensureCapacity(maxChunkSize);
+                    }
+                    long encodeStartMillis = SystemClock.elapsedRealtime();
+                    chunkSize = encoder.readAndEncodeChunk(inputStream, maxChunkSize);
+                    metrics.addStageTime(SendMetrics.STAGE_ENCODE, SystemClock.elapsedRealtime() - encodeStartMillis);
+                    if(chunkSize <= 0)
+                        break;
+                    String encoded = encoder.getEncodedChunk();
+
+                    startMillis = SystemClock.elapsedRealtime();
+                    response = gateway.putBulletinChunk(crypto,
+                                        authorId, bulletinLocalId, totalSize, offset, chunkSize, encoded);
+                }
+                long roundTripMillis = SystemClock.elapsedRealtime() - startMillis;
+                metrics.recordChunk(chunkSize, roundTripMillis);
+                result = response.getResultCode();
+                if(!result.equals(NetworkInterfaceConstants.CHUNK_OK) && !result.equals(NetworkInterfaceConstants.OK))
+                {
+                    boolean retryAfterUnreachable = (null != sizer) && isServerUnreachable(result)
+                            && ++consecutiveFailures <= MAX_ADAPTIVE_CHUNK_RETRIES;
+                    if (retryAfterUnreachable) {
+                        sizer.recordFailure();
+                        metrics.addCount(SendMetrics.COUNT_RETRIES, 1);
+                    } else if (!usingJournaledOffset) {
+                        break;
+                    }
+                    // whether the server kept the chunk is unknown, or it no longer agrees with
+                    // the journal, so ask it where to resume
+                    usingJournaledOffset = false;
+                    offset = getOffsetToStartUploading(uid, tempFile, gateway, crypto, metrics, true);
+                    if (null != prefetcher) {
+                        prefetcher.seek(offset);
+                    } else {
+                        inputStream.close();
+                        inputStream = openAtOffset(tempFile, offset);
+                    }
+                    continue;
+                }
+                usingJournaledOffset = false;
+                consecutiveFailures = 0;
+                if (null != sizer)
+                    sizer.recordSuccess(chunkSize, roundTripMillis);
+                offset += chunkSize;
+                if (null != sendQueue)
+                    sendQueue.recordConfirmedOffset(uid, offset);
+
+                fileSender.showProgress(offset * 100 / totalSize);
+            }
+        } finally {
+            if (null != prefetcher)
+                prefetcher.close();
+            else
+                inputStream.close();
+        }
+        return result;
+    }
+
+    private static int getOffsetToStartUploading(UniversalId uid, File tempFile, MobileClientSideNetworkGateway gateway,
+                                                 MartusCrypto crypto, SendMetrics.Record metrics, boolean isResync)
+    {
+        long startMillis = SystemClock.elapsedRealtime();
         int offset = gateway.getOffsetToStartUploading(uid, tempFile, crypto);
-        byte[] rawBytes = new byte[NetworkInterfaceConstants.CLIENT_MAX_CHUNK_SIZE];
-        FileInputStream inputStream = new FileInputStream(tempFile);
-	    inputStream.skip(offset);
+        metrics.addStageTime(SendMetrics.STAGE_OFFSET, SystemClock.elapsedRealtime() - startMillis);
+        if (isResync)
+            metrics.addCount(SendMetrics.COUNT_RESYNCS, 1);
+        return offset;
+    }
+
+    private static FileInputStream openAtOffset(File file, int offset) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        inputStream.skip(offset);
+        return inputStream;
+    }
+
+    private static boolean isServerUnreachable(String resultCode) {
+        return resultCode.equals(NetworkInterfaceConstants.NO_SERVER) || resultCode.equals(NetworkInterfaceConstants.SERVER_DOWN);
+    }
+
+    public static String uploadBulletinFromPipe(UniversalId uid, BulletinChunkPipe pipe, MobileClientSideNetworkGateway gateway, MartusCrypto crypto, ProgressUpdater fileSender)
+                throws IOException, MartusCrypto.MartusSignatureException
+    {
+        String authorId = uid.getAccountId();
+        String bulletinLocalId = uid.getLocalId();
+        final SendMetrics.Record metrics = AppConfig.getInstance().getSendMetrics().getRecord(uid);
+        BulletinChunkEncoder encoder = new BulletinChunkEncoder(pipe.getChunkSize());
+        int offset = 0;
         String result = null;
         while(true)
         {
-            int chunkSize = inputStream.read(rawBytes);
-            if(chunkSize <= 0)
+            byte[] chunkBytes = pipe.takeChunk();
+            if(chunkBytes == null)
                 break;
-            byte[] chunkBytes = new byte[chunkSize];
-            System.arraycopy(rawBytes, 0, chunkBytes, 0, chunkSize);
+            int chunkSize = chunkBytes.length;
 
-            String authorId = uid.getAccountId();
-            String bulletinLocalId = uid.getLocalId();
-            String encoded = StreamableBase64.encode(chunkBytes);
+            // the real size is only known once the zip is complete, so every chunk but the last
+            // carries a provisional size that is always larger than what has been sent so far
+            boolean isLastChunk = pipe.isAtEnd();
+            int totalSize;
+            if (isLastChunk)
+                totalSize = pipe.getTotalSize();
+            else
+                totalSize = getProvisionalTotalSize(pipe, offset + chunkSize);
 
+            long encodeStartMillis = SystemClock.elapsedRealtime();
+            encoder.encode(chunkBytes, 0, chunkSize);
+            String encoded = encoder.getEncodedChunk();
+            long startMillis = SystemClock.elapsedRealtime();
+            metrics.addStageTime(SendMetrics.STAGE_ENCODE, startMillis - encodeStartMillis);
             NetworkResponse response = gateway.putBulletinChunk(crypto,
                                 authorId, bulletinLocalId, totalSize, offset, chunkSize, encoded);
+            metrics.recordChunk(chunkSize, SystemClock.elapsedRealtime() - startMillis);
             result = response.getResultCode();
             if(!result.equals(NetworkInterfaceConstants.CHUNK_OK) && !result.equals(NetworkInterfaceConstants.OK))
                 break;
             offset += chunkSize;
 
-            fileSender.showProgress(offset * 100 / totalSize);
+            fileSender.showProgress((int)(offset * 100L / totalSize));
         }
-        inputStream.close();
         return result;
     }
 
+    private static int getProvisionalTotalSize(BulletinChunkPipe pipe, int sentAfterThisChunk) {
+        long provisional = Math.max(pipe.getEstimatedSize(), sentAfterThisChunk) + pipe.getChunkSize();
+        return (int)Math.min(provisional, Integer.MAX_VALUE);
+    }
+
     @Override
     public void showProgress(int value) {
+        // most chunks do not move the percentage, so skip the hop to the UI thread for those
+        if (value == lastPublishedProgress)
+            return;
+        lastPublishedProgress = value;
         publishProgress(value);
     }
 }
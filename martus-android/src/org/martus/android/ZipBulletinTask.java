@@ -1,15 +1,26 @@
 package org.martus.android;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.zip.ZipFile;
 
 import org.martus.client.bulletinstore.MobileClientBulletinStore;
 import org.martus.common.bulletin.Bulletin;
 import org.martus.common.bulletin.BulletinZipUtilities;
+import org.martus.common.bulletinstore.BulletinStore;
+import org.martus.common.crypto.MartusCrypto;
+import org.martus.common.database.DatabaseKey;
+import org.martus.common.database.ReadableDatabase;
+import org.martus.common.packet.BulletinHeaderPacket;
 import org.odk.collect.android.application.Collect;
 
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -22,10 +33,20 @@ public class ZipBulletinTask extends AsyncTask<Object, Integer, File> {
 
     private Bulletin bulletin;
     private BulletinSender sender;
+    private BulletinChunkPipe pipe;
 
     public ZipBulletinTask(Bulletin bulletin, BulletinSender sender) {
+        this(bulletin, sender, null);
+    }
+
+    /**
+     * @param pipe if not null, the zip is also streamed into this pipe as it is written so an
+     *             UploadBulletinTask can start sending before packaging has finished
+     */
+    public ZipBulletinTask(Bulletin bulletin, BulletinSender sender, BulletinChunkPipe pipe) {
         this.bulletin = bulletin;
         this.sender = sender;
+        this.pipe = pipe;
     }
 
     @Override
@@ -35,20 +56,71 @@ public class ZipBulletinTask extends AsyncTask<Object, Integer, File> {
         final MobileClientBulletinStore store = (MobileClientBulletinStore)params[1];
 
         File file = null;
+        final SendMetrics.Record metrics = AppConfig.getInstance().getSendMetrics().getRecord(bulletin.getUniversalId());
+        final BulletinSendQueue sendQueue = AppConfig.getInstance().getSendQueue();
 
         try {
+            long startMillis = SystemClock.elapsedRealtime();
             store.saveBulletin(bulletin);
+            long savedMillis = SystemClock.elapsedRealtime();
+            metrics.addStageTime(SendMetrics.STAGE_SAVE, savedMillis - startMillis);
             file = File.createTempFile("tmp_send_" + getCurrentTimeStamp(), ".zip", currentBulletinDir);
-            BulletinZipUtilities.exportBulletinPacketsFromDatabaseToZipFile(store.getDatabase(), bulletin.getDatabaseKey(), file, bulletin.getSignatureGenerator());
+            sendQueue.enqueue(bulletin.getUniversalId(), file);
+            if (null == pipe) {
+                BulletinZipUtilities.exportBulletinPacketsFromDatabaseToZipFile(store.getDatabase(), bulletin.getDatabaseKey(), file, bulletin.getSignatureGenerator());
+                sendQueue.recordZipped(bulletin.getUniversalId(), file);
+            } else {
+                exportBulletinPacketsToZipFileAndPipe(store.getDatabase(), bulletin.getDatabaseKey(), file, bulletin.getSignatureGenerator());
+            }
+            metrics.addStageTime(SendMetrics.STAGE_ZIP, SystemClock.elapsedRealtime() - savedMillis);
+            metrics.addCount(SendMetrics.COUNT_ZIP_BYTES, file.length());
 
 	        removeSavedFormData();
         } catch (Exception e) {
             Log.e("martus", "problem serializing bulletin to zip", e);
+            AppConfig.getInstance().getSendMetrics().finish(bulletin.getUniversalId(), "zip failed");
+            if (null != pipe) {
+                pipe.fail(e);
+            }
+            // a partial zip must not be sent, and onZipped keeps the bulletin when given null
+            if (null != file) {
+                sendQueue.remove(bulletin.getUniversalId());
+                file.delete();
+                file = null;
+            }
         }
 
         return file;
     }
 
+    /**
+     * Same packets and integrity check as BulletinZipUtilities.exportBulletinPacketsFromDatabaseToZipFile,
+     * but every byte written to the zip file is also handed to the pipe. The pipe is only finished
+     * once the completed zip has been validated, so the uploader never sends the final chunk of a bad zip.
+     */
+    private void exportBulletinPacketsToZipFileAndPipe(ReadableDatabase db, DatabaseKey headerKey, File destZipFile, MartusCrypto security) throws Exception {
+        BulletinHeaderPacket bhp = BulletinStore.loadBulletinHeaderPacket(db, headerKey, security);
+        DatabaseKey[] packetKeys = BulletinZipUtilities.getAllPacketKeys(bhp);
+
+        long estimatedSize = 0;
+        for (DatabaseKey packetKey : packetKeys) {
+            estimatedSize += db.getRecordSize(packetKey);
+        }
+        pipe.setEstimatedSize(estimatedSize);
+
+        OutputStream out = new TeeOutputStream(new BufferedOutputStream(new FileOutputStream(destZipFile)), pipe.getOutputStream());
+        BulletinZipUtilities.extractPacketsToZipStream(db, packetKeys, out, security);
+
+        ZipFile zip = new ZipFile(destZipFile);
+        try {
+            BulletinZipUtilities.validateIntegrityOfZipFilePackets(headerKey.getAccountId(), zip, security);
+        } finally {
+            zip.close();
+        }
+        AppConfig.getInstance().getSendQueue().recordZipped(bulletin.getUniversalId(), destZipFile);
+        pipe.finish(destZipFile);
+    }
+
 	private void removeSavedFormData()
 	{
 		File instanceFile = new File(new File(Collect.INSTANCES_PATH), ODKUtils.MARTUS_CUSTOM_ODK_INSTANCE);
@@ -73,4 +145,38 @@ public class ZipBulletinTask extends AsyncTask<Object, Integer, File> {
         return FILE_NAME_DATE_FORMAT.format(now);
     }
 
+    private static class TeeOutputStream extends OutputStream {
+        private final OutputStream primary;
+        private final OutputStream secondary;
+
+        TeeOutputStream(OutputStream primary, OutputStream secondary) {
+            this.primary = primary;
+            this.secondary = secondary;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            primary.write(b);
+            secondary.write(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            primary.write(buffer, offset, count);
+            secondary.write(buffer, offset, count);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            primary.flush();
+            secondary.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            primary.close();
+            secondary.close();
+        }
+    }
+
 }
@@ -34,11 +34,15 @@ import org.martus.common.MartusUtilities.FileVerificationException;
 import org.martus.common.bulletin.Bulletin;
 import org.martus.common.bulletinstore.BulletinStore;
 import org.martus.common.crypto.MartusCrypto;
+import org.martus.common.crypto.MartusCrypto.CryptoException;
 import org.martus.common.database.ClientFileDatabase;
 import org.martus.common.database.Database;
+import org.martus.common.database.DatabaseKey;
 import org.martus.common.database.FileDatabase.MissingAccountMapException;
 import org.martus.common.database.FileDatabase.MissingAccountMapSignatureException;
 import org.martus.common.fieldspec.StandardFieldSpecs;
+import org.martus.common.packet.AttachmentPacket;
+import org.martus.common.packet.UniversalId;
 
 /*
 	This class represents a collection of bulletins
@@ -94,6 +98,20 @@ public class MobileClientBulletinStore extends BulletinStore
 		saveBulletin(b, mustEncryptPublicData());
 	}
 
+	/*
+		Writes an attachment packet ahead of the bulletin that will
+		refer to it, so saveBulletin finds it already in the database.
+	*/
+	public void saveStagedAttachment(AttachmentPacket packet, MartusCrypto signer) throws IOException, CryptoException
+	{
+		packet.writeXmlToClientDatabase(getWriteableDatabase(), mustEncryptPublicData(), signer);
+	}
+
+	public void discardStagedAttachment(UniversalId attachmentUid)
+	{
+		getWriteableDatabase().discardRecord(DatabaseKey.createLegacyKey(attachmentUid));
+	}
+
 	public FieldSpecCollection getBottomSectionFieldSpecs()
 	{
 		return bottomSectionFieldSpecs;
@@ -26,9 +26,13 @@ Boston, MA 02111-1307, USA.
 
 package org.martus.clientside;
 
+import java.util.Vector;
+
+import org.martus.common.crypto.MartusCrypto;
 import org.martus.common.network.ClientSideNetworkInterface;
 import org.martus.common.network.NetworkInterface;
 import org.martus.common.network.NetworkInterfaceXmlRpcConstants;
+import org.martus.common.network.NetworkResponse;
 import org.martus.common.network.PassThroughTransportWrapper;
 
 public class MobileClientSideNetworkGateway extends ClientSideNetworkGateway
@@ -39,6 +43,27 @@ public class MobileClientSideNetworkGateway extends ClientSideNetworkGateway
 	}
 
 
+	// putBulletinChunk split in two, so the next chunk can be signed while the current one is
+	// still being sent; together they send exactly what putBulletinChunk sends
+	public static SignedBulletinChunk signBulletinChunk(MartusCrypto signer, String authorAccountId, String bulletinLocalId,
+			int totalSize, int chunkOffset, int chunkSize, String data) throws MartusCrypto.MartusSignatureException
+	{
+		Vector parameters = new Vector();
+		parameters.add(authorAccountId);
+		parameters.add(bulletinLocalId);
+		parameters.add(new Integer(totalSize));
+		parameters.add(new Integer(chunkOffset));
+		parameters.add(new Integer(chunkSize));
+		parameters.add(data);
+		String signature = signer.createSignatureOfVectorOfStrings(parameters);
+		return new SignedBulletinChunk(signer.getPublicKeyString(), parameters, signature, chunkOffset, chunkSize);
+	}
+
+	public NetworkResponse putSignedBulletinChunk(SignedBulletinChunk chunk)
+	{
+		return new NetworkResponse(getInterface().putBulletinChunk(chunk.signerPublicKey, chunk.parameters, chunk.signature));
+	}
+
 	static public MobileClientSideNetworkGateway buildGateway(String serverName, String serverPublicKey, PassThroughTransportWrapper transportToUse)
 	{
         ClientSideNetworkInterface server = buildNetworkInterface(serverName, serverPublicKey, transportToUse);
@@ -67,4 +92,32 @@ public class MobileClientSideNetworkGateway extends ClientSideNetworkGateway
 			return null;
 		}
 	}
+
+	public static class SignedBulletinChunk
+	{
+		SignedBulletinChunk(String signerPublicKey, Vector parameters, String signature, int chunkOffset, int chunkSize)
+		{
+			this.signerPublicKey = signerPublicKey;
+			this.parameters = parameters;
+			this.signature = signature;
+			this.chunkOffset = chunkOffset;
+			this.chunkSize = chunkSize;
+		}
+
+		public int getChunkOffset()
+		{
+			return chunkOffset;
+		}
+
+		public int getChunkSize()
+		{
+			return chunkSize;
+		}
+
+		private final String signerPublicKey;
+		private final Vector parameters;
+		private final String signature;
+		private final int chunkOffset;
+		private final int chunkSize;
+	}
 }
@@ -35,6 +35,8 @@ import org.martus.common.network.NetworkInterfaceConstants;
 import org.martus.common.network.PassThroughTransportWrapper;
 
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
 
 import javax.xml.parsers.SAXParserFactory;
@@ -47,6 +49,17 @@ public class MobileClientSideNetworkHandlerUsingXmlRpc
 	public MobileClientSideNetworkHandlerUsingXmlRpc(String serverName, int[] portsToUse, PassThroughTransportWrapper transportToUse) throws ClientSideNetworkHandlerUsingXmlRpc.SSLSocketSetupException
 	{
 		super(serverName, portsToUse, transportToUse);
+		pooledClients = new HashMap<String, XmlRpcClient>();
+	}
+
+	// With xmlrpc 3.x an XmlRpcClient is safe to share once configured, so one client
+	// (and its transport factory and config) is kept per server url and reused for every call.
+	int getPooledClientCount()
+	{
+		synchronized(pooledClients)
+		{
+			return pooledClients.size();
+		}
 	}
 
 	public Object executeXmlRpc(String serverName, String method, Vector params, int port) throws Exception
@@ -60,9 +73,29 @@ public class MobileClientSideNetworkHandlerUsingXmlRpc
 		final String serverUrl = "https://" + serverName + ":" + port + "/RPC2";
 		MartusLogger.logVerbose("ServerInterfaceXmlRpcHandler:callServer serverUrl=" + serverUrl);
 		
-		// NOTE: We **MUST** create a new XmlRpcClient for each call, because
-		// there is a memory leak in apache xmlrpc 1.1 that will cause out of 
-		// memory exceptions if we reuse an XmlRpcClient object
+		XmlRpcClient client = getPooledClient(serverUrl);
+		Object result = client.execute("MartusServer." + method, params);
+		return result;
+	}
+
+	private XmlRpcClient getPooledClient(String serverUrl) throws Exception
+	{
+		// a client built for one transport mode must not be reused after Tor is switched on or off
+		final String key = getTransport().isTorEnabled() + " " + serverUrl;
+		synchronized(pooledClients)
+		{
+			XmlRpcClient client = pooledClients.get(key);
+			if(client == null)
+			{
+				client = createClient(serverUrl);
+				pooledClients.put(key, client);
+			}
+			return client;
+		}
+	}
+
+	private XmlRpcClient createClient(String serverUrl) throws Exception
+	{
 		XmlRpcClient client = new XmlRpcClient();
 		XmlRpcTransportFactory transportFactory = getTransport().createTransport(client, tm);
 		if(transportFactory != null)
@@ -70,11 +103,25 @@ public class MobileClientSideNetworkHandlerUsingXmlRpc
 		
 		XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
 		config.setServerURL(new URL(serverUrl));
-		SAXParsers.setSAXParserFactory(SAXParserFactory.newInstance());
+		installSAXParserFactory();
 		client.setConfig(config);
-		
-		Object result = client.execute("MartusServer." + method, params);
-		return result;
+		return client;
 	}
 
+	// SAXParsers keeps a single process wide factory and creating one means a service lookup,
+	// so it is installed once rather than for every client
+	private static void installSAXParserFactory()
+	{
+		synchronized(MobileClientSideNetworkHandlerUsingXmlRpc.class)
+		{
+			if(saxParserFactoryInstalled)
+				return;
+			SAXParsers.setSAXParserFactory(SAXParserFactory.newInstance());
+			saxParserFactoryInstalled = true;
+		}
+	}
+
+	private static boolean saxParserFactoryInstalled;
+
+	private final Map<String, XmlRpcClient> pooledClients;
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.model.util.restorable.RestoreUtils;
+import org.javarosa.xform.util.XFormAnswerDataParser;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Restores a saved instance into a {@link FormDef}'s main instance straight from the XML,
+ * with the same result as <code>XFormParser.restoreDataModel</code> followed by
+ * <code>TreeElement.populate</code> on a deep copy of the template root.
+ * <p>
+ * That path holds the saved XML as bytes, as a kxml Document and as a TreeElement tree, next
+ * to a copy of the template, all at once. Here the saved XML is pulled one event at a time and
+ * each value is set on the copy of the template as it is read, so only the copy is held. The
+ * copy replaces the form's root once the whole instance has been read; if reading fails part
+ * way the form's instance is left as it was.
+ */
+public class StreamingInstanceLoader {
+    private static final String JAVAROSA_NAMESPACE = "http://openrosa.org/javarosa";
+    private static final String TEMPLATE_ATTRIBUTE = "template";
+
+    private final FormDef form;
+
+
+    public StreamingInstanceLoader(FormDef form) {
+        this.form = form;
+    }
+
+
+    /**
+     * @return false if the saved instance is not one of this form's, in which case the form's
+     *         instance is left as it was, as it is when an exception is thrown
+     */
+    public boolean load(InputStream savedInstance) throws IOException, XmlPullParserException {
+        KXmlParser parser = new KXmlParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(savedInstance, null);
+        parser.nextTag();
+
+        TreeElement root = form.getInstance().getRoot();
+        if (!parser.getName().equals(root.getName())) {
+            return false;
+        }
+        TreeElement filled = root.deepCopy(true);
+        populate(parser, filled);
+        form.getInstance().setRoot(filled);
+        return true;
+    }
+
+
+    /**
+     * Fills element from the saved element the parser is at the start tag of, and leaves the
+     * parser at its end tag.
+     */
+    private void populate(KXmlParser parser, TreeElement element) throws IOException,
+            XmlPullParserException {
+        if (element.isLeaf()) {
+            setValue(element, readLeafText(parser));
+            return;
+        }
+
+        removeRepeats(element);
+        Set<String> seen = new HashSet<String>();
+        Map<String, Integer> repeatCounts = new HashMap<String, Integer>();
+        // looked up before any repeats are added, so thousands of them do not slow the lookup
+        Map<String, TreeElement> templates = getRepeatTemplates(element);
+
+        while (parser.nextTag() == XmlPullParser.START_TAG) {
+            String name = parser.getName();
+            TreeElement template = templates.get(name);
+            if (parser.getAttributeValue(JAVAROSA_NAMESPACE, TEMPLATE_ATTRIBUTE) != null) {
+                skipElement(parser);
+            } else if (template != null) {
+                Integer count = repeatCounts.get(name);
+                int mult = (count == null) ? 0 : count;
+                repeatCounts.put(name, mult + 1);
+
+                TreeElement repeat = template.deepCopy(true);
+                repeat.setMult(mult);
+                element.addChild(repeat);
+                populate(parser, repeat);
+            } else {
+                TreeElement child = element.getChild(name, 0);
+                if (child == null || !seen.add(name)) {
+                    // not in the form, or a duplicate populate would also have ignored
+                    skipElement(parser);
+                } else {
+                    populate(parser, child);
+                }
+            }
+        }
+
+        // anything the saved instance did not have is not relevant
+        for (int i = 0; i < element.getNumChildren(); i++) {
+            TreeElement child = element.getChildAt(i);
+            if (!child.repeatable && !seen.contains(child.getName())) {
+                child.setRelevant(false);
+            }
+        }
+    }
+
+
+    private static Map<String, TreeElement> getRepeatTemplates(TreeElement element) {
+        Map<String, TreeElement> templates = new HashMap<String, TreeElement>();
+        for (int i = 0; i < element.getNumChildren(); i++) {
+            TreeElement child = element.getChildAt(i);
+            if (child.repeatable && child.getMult() == TreeReference.INDEX_TEMPLATE) {
+                templates.put(child.getName(), child);
+            }
+        }
+        return templates;
+    }
+
+
+    /**
+     * Drops any repeats the template was built with, keeping the repeat templates themselves.
+     */
+    private static void removeRepeats(TreeElement element) {
+        for (int i = 0; i < element.getNumChildren(); i++) {
+            TreeElement child = element.getChildAt(i);
+            if (child.repeatable && child.getMult() != TreeReference.INDEX_TEMPLATE) {
+                element.removeChildAt(i);
+                i--;
+            }
+        }
+    }
+
+
+    /**
+     * @return the trimmed text of the saved element, or null if it is empty or the saved element
+     *         has child elements of its own
+     */
+    private static String readLeafText(KXmlParser parser) throws IOException,
+            XmlPullParserException {
+        StringBuilder text = new StringBuilder();
+        boolean hasChildElements = false;
+        int depth = 1;
+        while (depth > 0) {
+            int event = parser.next();
+            if (event == XmlPullParser.START_TAG) {
+                hasChildElements = true;
+                depth++;
+            } else if (event == XmlPullParser.END_TAG) {
+                depth--;
+            } else if (event == XmlPullParser.TEXT && depth == 1) {
+                text.append(parser.getText());
+            } else if (event == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Saved instance ended inside an element");
+            }
+        }
+        if (hasChildElements) {
+            return null;
+        }
+        String trimmed = text.toString().trim();
+        return trimmed.length() > 0 ? trimmed : null;
+    }
+
+
+    private static void skipElement(KXmlParser parser) throws IOException,
+            XmlPullParserException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = parser.next();
+            if (event == XmlPullParser.START_TAG) {
+                depth++;
+            } else if (event == XmlPullParser.END_TAG) {
+                depth--;
+            } else if (event == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Saved instance ended inside an element");
+            }
+        }
+    }
+
+
+    private void setValue(TreeElement element, String text) {
+        if (text == null) {
+            element.setValue(null);
+            return;
+        }
+        // the saved value is parsed without a type first, as restoreDataModel does
+        IAnswerData saved = XFormAnswerDataParser.getAnswerData(text, Constants.DATATYPE_UNSUPPORTED, null);
+        if (element.dataType == Constants.DATATYPE_TEXT
+                || element.dataType == Constants.DATATYPE_UNSUPPORTED || saved == null) {
+            element.setValue(saved);
+        } else {
+            element.setValue(RestoreUtils.xfFact.parseData((String) saved.getValue(),
+                element.dataType, element.getRef(), form));
+        }
+    }
+}
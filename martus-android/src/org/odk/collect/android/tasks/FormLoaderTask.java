@@ -14,39 +14,39 @@
 
 package org.odk.collect.android.tasks;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.FormIndex;
 import org.javarosa.core.model.condition.EvaluationContext;
-import org.javarosa.core.model.instance.TreeElement;
-import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.core.reference.RootTranslator;
 import org.javarosa.core.services.PrototypeManager;
 import org.javarosa.core.util.externalizable.DeserializationException;
-import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryModel;
 import org.javarosa.model.xform.XFormsModule;
 import org.javarosa.xform.parse.XFormParseException;
-import org.javarosa.xform.parse.XFormParser;
 import org.javarosa.xform.util.XFormUtils;
 import org.martus.android.AppConfig;
+import org.martus.android.BaseActivity;
 import org.martus.android.MartusCryptoFileUtils;
 import org.martus.android.ODKUtils;
+import org.martus.common.crypto.MartusSecurity;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.ItemsetDbAdapter;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.logic.FileReferenceFactory;
 import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.StreamingInstanceLoader;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormDefCache;
+import org.odk.collect.android.utilities.FormDefSnapshot;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.content.Intent;
 import android.database.Cursor;
@@ -90,6 +90,8 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 			"org.javarosa.core.model.data.helper.BasicDataPointer" // CoreModelModule
     };
 
+    private static final long SNAPSHOT_SCHEMA_TAG = FormDefSnapshot.getSchemaTag(SERIALIABLE_CLASSES);
+
     private static boolean isJavaRosaInitialized = false;
     /**
      * The JR implementation here does not look thread-safe or
@@ -168,8 +170,9 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         String formPath = path[0];
 
         File formXml = new File(formPath);
-        String formHash = FileUtils.getMd5Hash(formXml);
-        File formBin = new File(Collect.CACHE_PATH + File.separator + formHash + ".formdef");
+        FormDefCache formDefCache = FormDefCache.getInstance();
+        String formHash = formDefCache.getHash(formXml);
+        File formBin = formDefCache.getFormDefFile(formHash);
 
         initializeJavaRosa();
 
@@ -179,24 +182,34 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 t,
                 "Attempting to load " + formXml.getName() + " from cached file: "
                         + formBin.getAbsolutePath());
+            long startMillis = System.currentTimeMillis();
             fd = deserializeFormDef(formBin);
+            if (fd != null) {
+                Log.i(t, "Loaded " + formXml.getName() + " from snapshot in "
+                        + (System.currentTimeMillis() - startMillis) + " ms");
+            }
             if (fd == null) {
                 // some error occured with deserialization. Remove the file, and make a new .formdef
                 // from xml
                 Log.w(t,
                     "Deserialization FAILED!  Deleting cache file: " + formBin.getAbsolutePath());
                 formBin.delete();
+            } else {
+                formDefCache.touch(formBin);
             }
         }
         if (fd == null) {
             // no binary, read from xml
             try {
                 Log.i(t, "Attempting to load from: " + formXml.getAbsolutePath());
+                long startMillis = System.currentTimeMillis();
                 fis = new FileInputStream(formXml);
                 fd = XFormUtils.getFormFromInputStream(fis);
                 if (fd == null) {
                     mErrorMsg = "Error reading XForm file";
                 } else {
+                    Log.i(t, "Parsed " + formXml.getName() + " in "
+                            + (System.currentTimeMillis() - startMillis) + " ms");
                     serializeFormDef(fd, formPath);
                 }
             } catch (FileNotFoundException e) {
@@ -230,15 +243,24 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             	File instance = new File(mInstancePath);
             	if ( instance.exists() ) {
 	                // This order is important. Import data, then initialize.
+		            // a copy of the key pair of our own, since the stream keeps using its cipher
+		            MartusSecurity decrypter = BaseActivity.cloneSecurity(AppConfig.getInstance().getCrypto());
 		            try {
 			            File encryptedDataFile = new File(new File(Collect.INSTANCES_PATH), ODKUtils.MARTUS_CUSTOM_ODK_INSTANCE);
                         File sigFile = new File(new File(Collect.INSTANCES_PATH), ODKUtils.MARTUS_CUSTOM_ODK_INSTANCE_SIG);
-		                byte[] savedData = MartusCryptoFileUtils.verifyAndReadSignedFile(encryptedDataFile, sigFile, AppConfig.getInstance().getCrypto());
-			            importData(savedData, fec);
+		                InputStream savedData = MartusCryptoFileUtils.openVerifiedSignedFile(encryptedDataFile, sigFile, decrypter);
+		                try {
+			                importData(savedData, fec);
+		                } finally {
+			                savedData.close();
+		                }
                         fd.initialize(false);
 		            } catch (Exception e) {
 			            Log.e(AppConfig.LOG_LABEL, "problem reading saved form data ", e);
 			            fd.initialize(true);
+		            } finally {
+			            if (decrypter != null)
+				            decrypter.clearKeyPair();
 		            }
             	} else {
             		fd.initialize(true);
@@ -337,36 +359,27 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     }
 
 
-    public boolean importData(byte[] fileBytes, FormEntryController fec) {
-        // get the root of the saved and template instances
-        TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
-        TreeElement templateRoot = fec.getModel().getForm().getInstance().getRoot().deepCopy(true);
-
+    /**
+     * Restores the saved instance into the form as it is read, see {@link StreamingInstanceLoader}.
+     */
+    public boolean importData(InputStream savedInstance, FormEntryController fec)
+            throws IOException, XmlPullParserException {
         // weak check for matching forms
-        if (!savedRoot.getName().equals(templateRoot.getName()) || savedRoot.getMult() != 0) {
+        if (!new StreamingInstanceLoader(fec.getModel().getForm()).load(savedInstance)) {
             Log.e(t, "Saved form instance does not match template form definition");
             return false;
-        } else {
-            // populate the data model
-            TreeReference tr = TreeReference.rootRef();
-            tr.add(templateRoot.getName(), TreeReference.INDEX_UNBOUND);
-            templateRoot.populate(savedRoot, fec.getModel().getForm());
-
-            // populated model to current form
-            fec.getModel().getForm().getInstance().setRoot(templateRoot);
-
-            // fix any language issues
-            // : http://bitbucket.org/javarosa/main/issue/5/itext-n-appearing-in-restored-instances
-            if (fec.getModel().getLanguages() != null) {
-                fec.getModel()
-                        .getForm()
-                        .localeChanged(fec.getModel().getLanguage(),
-                            fec.getModel().getForm().getLocalizer());
-            }
-
-            return true;
+        }
 
+        // fix any language issues
+        // : http://bitbucket.org/javarosa/main/issue/5/itext-n-appearing-in-restored-instances
+        if (fec.getModel().getLanguages() != null) {
+            fec.getModel()
+                    .getForm()
+                    .localeChanged(fec.getModel().getLanguage(),
+                        fec.getModel().getForm().getLocalizer());
         }
+
+        return true;
     }
 
     /**
@@ -378,18 +391,10 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     public FormDef deserializeFormDef(File formDef) {
 
         // TODO: any way to remove reliance on jrsp?
-        FileInputStream fis = null;
         FormDef fd = null;
         try {
-            // create new form def
-            fd = new FormDef();
-            fis = new FileInputStream(formDef);
-            DataInputStream dis = new DataInputStream(fis);
-
-            // read serialized formdef into new formdef
-            fd.readExternal(dis, ExtUtil.defaultPrototypes());
-            dis.close();
-
+            // read the snapshot into a new formdef, or null if it is stale
+            fd = FormDefSnapshot.read(formDef, SNAPSHOT_SCHEMA_TAG);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             fd = null;
@@ -414,21 +419,16 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
      * @param filepath path to the form file
      */
     public void serializeFormDef(FormDef fd, String filepath) {
-        // calculate unique md5 identifier
-        String hash = FileUtils.getMd5Hash(new File(filepath));
-        File formDef = new File(Collect.CACHE_PATH + File.separator + hash + ".formdef");
+        // unique md5 identifier, normally already in the index from loading the form
+        FormDefCache formDefCache = FormDefCache.getInstance();
+        String hash = formDefCache.getHash(new File(filepath));
+        File formDef = formDefCache.getFormDefFile(hash);
 
         // formdef does not exist, create one.
         if (!formDef.exists()) {
-            FileOutputStream fos;
             try {
-                fos = new FileOutputStream(formDef);
-                DataOutputStream dos = new DataOutputStream(fos);
-                fd.writeExternal(dos);
-                dos.flush();
-                dos.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+                FormDefSnapshot.write(fd, formDef, SNAPSHOT_SCHEMA_TAG);
+                formDefCache.trim(formDef);
             } catch (IOException e) {
                 e.printStackTrace();
             }
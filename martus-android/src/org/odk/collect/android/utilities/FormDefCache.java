@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import org.odk.collect.android.application.Collect;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The <code>[formmd5].formdef</code> files in {@link Collect#CACHE_PATH}, and an index of form
+ * path, size and modification time to md5 kept next to them, so opening a form that has not
+ * changed does not stream the whole XForm through MD5 before the cache can be checked.
+ * <p>
+ * A form modified within MTIME_GRANULARITY_MILLIS of being hashed is not indexed, since it could
+ * still change again without its size or timestamp changing. The .formdef files are kept under
+ * MAX_CACHE_BYTES by deleting the least recently used ones; a hit refreshes a file's timestamp.
+ */
+public class FormDefCache {
+    private final static String t = "FormDefCache";
+
+    public static final String FORMDEF_SUFFIX = ".formdef";
+    public static final String INDEX_FILE = "formdef.index";
+    public static final long MAX_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+    private static final String SEPARATOR = "\t";
+
+    private static FormDefCache instance;
+
+    private final File cacheDir;
+    private final File indexFile;
+    private final Map<String, IndexEntry> index;
+    private boolean loaded;
+
+
+    public static synchronized FormDefCache getInstance() {
+        if (instance == null || !instance.cacheDir.getPath().equals(Collect.CACHE_PATH)) {
+            instance = new FormDefCache(new File(Collect.CACHE_PATH));
+        }
+        return instance;
+    }
+
+
+    public FormDefCache(File cacheDir) {
+        this.cacheDir = cacheDir;
+        indexFile = new File(cacheDir, INDEX_FILE);
+        index = new HashMap<String, IndexEntry>();
+    }
+
+
+    /**
+     * @return the md5 of the form file, from the index if the file is unchanged since it was
+     *         last hashed, or null if it could not be read
+     */
+    public synchronized String getHash(File formXml) {
+        load();
+        String path = formXml.getAbsolutePath();
+        long size = formXml.length();
+        long lastModified = formXml.lastModified();
+
+        IndexEntry entry = index.get(path);
+        if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+            return entry.hash;
+        }
+
+        String hash = FileUtils.getMd5Hash(formXml);
+        if (hash == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - lastModified > MTIME_GRANULARITY_MILLIS) {
+            index.put(path, new IndexEntry(size, lastModified, hash));
+            save();
+        } else if (entry != null) {
+            index.remove(path);
+            save();
+        }
+        return hash;
+    }
+
+
+    public File getFormDefFile(String hash) {
+        return new File(cacheDir, hash + FORMDEF_SUFFIX);
+    }
+
+
+    /**
+     * Marks a .formdef as just used, so it is the last to be evicted.
+     */
+    public void touch(File formDef) {
+        formDef.setLastModified(System.currentTimeMillis());
+    }
+
+
+    /**
+     * Deletes the least recently used .formdef files until the rest fit in MAX_CACHE_BYTES.
+     *
+     * @param keep a .formdef that is never deleted, normally the one just written
+     */
+    public synchronized void trim(File keep) {
+        File[] formDefs = cacheDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.endsWith(FORMDEF_SUFFIX);
+            }
+        });
+        if (formDefs == null) {
+            return;
+        }
+
+        final Map<File, Long> lastUsed = new HashMap<File, Long>();
+        long totalBytes = 0;
+        for (File formDef : formDefs) {
+            lastUsed.put(formDef, formDef.lastModified());
+            totalBytes += formDef.length();
+        }
+        Arrays.sort(formDefs, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                return lastUsed.get(first).compareTo(lastUsed.get(second));
+            }
+        });
+
+        for (File formDef : formDefs) {
+            if (totalBytes <= MAX_CACHE_BYTES) {
+                break;
+            }
+            if (formDef.equals(keep)) {
+                continue;
+            }
+            long length = formDef.length();
+            if (formDef.delete()) {
+                Log.i(t, "Evicted cached form " + formDef.getName());
+                totalBytes -= length;
+            }
+        }
+    }
+
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!indexFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR);
+                if (fields.length != 4) {
+                    continue;
+                }
+                try {
+                    index.put(fields[0], new IndexEntry(Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), fields[3]));
+                } catch (NumberFormatException e) {
+                    Log.w(t, "Skipping bad form hash index line");
+                }
+            }
+        } catch (IOException e) {
+            Log.e(t, "Unable to read form hash index " + indexFile.getAbsolutePath());
+            index.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(t, "Unable to close form hash index");
+                }
+            }
+        }
+    }
+
+
+    private void save() {
+        Iterator<String> paths = index.keySet().iterator();
+        while (paths.hasNext()) {
+            if (!new File(paths.next()).exists()) {
+                paths.remove();
+            }
+        }
+
+        File tempFile = new File(cacheDir, INDEX_FILE + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+            try {
+                for (Map.Entry<String, IndexEntry> entry : index.entrySet()) {
+                    IndexEntry value = entry.getValue();
+                    writer.write(entry.getKey() + SEPARATOR + value.size + SEPARATOR
+                            + value.lastModified + SEPARATOR + value.hash + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                Log.e(t, "Unable to replace form hash index " + indexFile.getAbsolutePath());
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            Log.e(t, "Unable to write form hash index " + indexFile.getAbsolutePath());
+            tempFile.delete();
+        }
+    }
+
+
+    private static class IndexEntry {
+        final long size;
+        final long lastModified;
+        final String hash;
+
+
+        IndexEntry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
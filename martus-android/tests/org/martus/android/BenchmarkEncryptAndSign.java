@@ -0,0 +1,141 @@
+package org.martus.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.martus.common.crypto.MartusSecurity;
+import org.martus.common.crypto.MockMartusSecurity;
+
+import junit.framework.TestCase;
+
+/**
+ * Times MartusCryptoFileUtils.encryptAndWriteFileAndSignatureFile, which signs the ciphertext as
+ * it is written, against the old encrypt-then-read-back-and-sign, for 1 MB and 50 MB instances.
+ */
+public class BenchmarkEncryptAndSign extends TestCase {
+
+    private static final int RUNS = 5;
+    private static final int MB = 1024 * 1024;
+
+    private MartusSecurity security;
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        security = MockMartusSecurity.createClient();
+        dir = File.createTempFile("$$$BenchmarkEncryptAndSign", null);
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+        super.tearDown();
+    }
+
+    public void testOneMegabyte() throws Exception {
+        benchmark(1);
+    }
+
+    public void testFiftyMegabytes() throws Exception {
+        benchmark(50);
+    }
+
+    private void benchmark(int megabytes) throws Exception {
+        File plainFile = createPlainFile(megabytes);
+        File dataFile = new File(dir, "data");
+        File signatureFile = new File(dir, "signature");
+
+        long bestSigningMillis = Long.MAX_VALUE;
+        long bestRereadMillis = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; ++run) {
+            long startMillis = System.currentTimeMillis();
+            MartusCryptoFileUtils.encryptAndWriteFileAndSignatureFile(dataFile, signatureFile,
+                    new BufferedInputStream(new FileInputStream(plainFile)), security);
+            bestSigningMillis = Math.min(bestSigningMillis, System.currentTimeMillis() - startMillis);
+            assertTrue(isSignatureValid(dataFile, signatureFile));
+
+            startMillis = System.currentTimeMillis();
+            encryptThenRereadAndSign(plainFile, dataFile, signatureFile);
+            bestRereadMillis = Math.min(bestRereadMillis, System.currentTimeMillis() - startMillis);
+            assertTrue(isSignatureValid(dataFile, signatureFile));
+        }
+        System.out.println(megabytes + " MB: signed while written " + bestSigningMillis + " ms, written then reread "
+                + bestRereadMillis + " ms (best of " + RUNS + ")");
+    }
+
+    // what encryptAndWriteFileAndSignatureFile did before the ciphertext was signed as it was written
+    private void encryptThenRereadAndSign(File plainFile, File dataFile, File signatureFile) throws Exception {
+        InputStream in = new BufferedInputStream(new FileInputStream(plainFile));
+        OutputStream out = new FileOutputStream(dataFile);
+        security.setShouldWriteAuthorDecryptableData(true);
+        try {
+            security.encrypt(in, out);
+        } finally {
+            security.setShouldWriteAuthorDecryptableData(false);
+            out.close();
+            in.close();
+        }
+
+        InputStream reread = new FileInputStream(dataFile);
+        byte[] signature;
+        try {
+            signature = security.createSignatureOfStream(reread);
+        } finally {
+            reread.close();
+        }
+        writeFile(signatureFile, signature);
+    }
+
+    private boolean isSignatureValid(File dataFile, File signatureFile) throws Exception {
+        byte[] signature = new byte[(int)signatureFile.length()];
+        InputStream in = new FileInputStream(signatureFile);
+        try {
+            assertEquals(signature.length, in.read(signature));
+        } finally {
+            in.close();
+        }
+        InputStream data = new BufferedInputStream(new FileInputStream(dataFile));
+        try {
+            return security.isValidSignatureOfStream(security.getPublicKeyString(), data, signature);
+        } finally {
+            data.close();
+        }
+    }
+
+    private File createPlainFile(int megabytes) throws IOException {
+        File plainFile = new File(dir, "plain");
+        Random random = new Random(megabytes);
+        byte[] block = new byte[MB];
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(plainFile));
+        try {
+            for (int i = 0; i < megabytes; ++i) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        } finally {
+            out.close();
+        }
+        return plainFile;
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
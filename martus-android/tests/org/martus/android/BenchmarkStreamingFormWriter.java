@@ -0,0 +1,158 @@
+package org.martus.android;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import org.kxml2.io.KXmlSerializer;
+import org.xmlpull.v1.XmlSerializer;
+
+import junit.framework.TestCase;
+
+/**
+ * Writes a synthetic form with one 5,000 choice dropdown the way ODKUtils.writeXml does now,
+ * serializing through a buffered UTF-8 writer straight to the file, and the way it used to,
+ * serializing into a StringWriter and writing toString().getBytes(). Prints wall-clock time and
+ * peak heap for each.
+ */
+public class BenchmarkStreamingFormWriter extends TestCase {
+
+    private static final int CHOICES = 5000;
+    private static final int RUNS = 5;
+    // same buffering as ODKUtils.writeXml
+    private static final int XML_OUTPUT_BUFFER_SIZE = 16 * 1024;
+
+    private File formFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        formFile = File.createTempFile("$$$BenchmarkStreamingFormWriter", ".xml");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        formFile.delete();
+        super.tearDown();
+    }
+
+    public void testFiveThousandChoiceForm() throws Exception {
+        writeStreaming();
+        long streamedLength = formFile.length();
+        writeInMemory();
+        assertEquals("both paths write the same form", streamedLength, formFile.length());
+
+        long bestStreamingMillis = Long.MAX_VALUE;
+        long bestInMemoryMillis = Long.MAX_VALUE;
+        long streamingPeakBytes = Long.MAX_VALUE;
+        long inMemoryPeakBytes = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; ++run) {
+            long baseline = resetPeakHeap();
+            long startMillis = System.currentTimeMillis();
+            writeStreaming();
+            bestStreamingMillis = Math.min(bestStreamingMillis, System.currentTimeMillis() - startMillis);
+            streamingPeakBytes = Math.min(streamingPeakBytes, getPeakHeap() - baseline);
+
+            baseline = resetPeakHeap();
+            startMillis = System.currentTimeMillis();
+            writeInMemory();
+            bestInMemoryMillis = Math.min(bestInMemoryMillis, System.currentTimeMillis() - startMillis);
+            inMemoryPeakBytes = Math.min(inMemoryPeakBytes, getPeakHeap() - baseline);
+        }
+        System.out.println(CHOICES + " choices, " + streamedLength / 1024 + " KB form: streamed "
+                + bestStreamingMillis + " ms, peak heap +" + streamingPeakBytes / 1024 + " KB; in memory "
+                + bestInMemoryMillis + " ms, peak heap +" + inMemoryPeakBytes / 1024 + " KB (best of " + RUNS + ")");
+    }
+
+    private void writeStreaming() throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(formFile), "UTF-8"), XML_OUTPUT_BUFFER_SIZE);
+        try {
+            writeForm(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    // what ODKUtils.writeXml did before the form was streamed to disk
+    private void writeInMemory() throws IOException {
+        StringWriter writer = new StringWriter();
+        writeForm(writer);
+        FileOutputStream out = new FileOutputStream(formFile);
+        try {
+            out.write(writer.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    // the itext and body sections ODKUtils generates for a single dropdown field
+    private static void writeForm(Writer out) throws IOException {
+        XmlSerializer serializer = new KXmlSerializer();
+        serializer.setOutput(out);
+        serializer.startDocument("UTF-8", true);
+        serializer.startTag("", "h:html");
+        serializer.startTag("", "h:head");
+        serializer.startTag("", "model");
+        serializer.startTag("", "itext");
+        serializer.startTag("", "translation");
+        serializer.attribute("", "lang", "eng");
+        for (int i = 0; i < CHOICES; ++i) {
+            serializer.startTag("", "text");
+            serializer.attribute("", "id", "/data/dropdown:option" + i);
+            serializer.startTag("", "value");
+            serializer.text("Choice label number " + i);
+            serializer.endTag("", "value");
+            serializer.endTag("", "text");
+        }
+        serializer.endTag("", "translation");
+        serializer.endTag("", "itext");
+        serializer.endTag("", "model");
+        serializer.endTag("", "h:head");
+        serializer.startTag("", "h:body");
+        serializer.startTag("", "select1");
+        serializer.attribute("", "appearance", "minimal");
+        serializer.attribute("", "ref", "/data/dropdown");
+        for (int i = 0; i < CHOICES; ++i) {
+            serializer.startTag("", "item");
+            serializer.startTag("", "label");
+            serializer.attribute("", "ref", "jr:itext('/data/dropdown:option" + i + "')");
+            serializer.endTag("", "label");
+            serializer.startTag("", "value");
+            serializer.text("code" + i);
+            serializer.endTag("", "value");
+            serializer.endTag("", "item");
+        }
+        serializer.endTag("", "select1");
+        serializer.endTag("", "h:body");
+        serializer.endTag("", "h:html");
+        serializer.endDocument();
+    }
+
+    private static long resetPeakHeap() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,60 @@
+package org.martus.android;
+
+import junit.framework.TestCase;
+
+public class TestAdaptiveChunkSizer extends TestCase {
+
+    private static final int START_SIZE = 64 * 1024;
+
+    public void testQuickFullChunksGrow() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(START_SIZE);
+        sizer.recordSuccess(START_SIZE, 500);
+        assertEquals(START_SIZE * 2, sizer.getChunkSize());
+    }
+
+    public void testShortChunkDoesNotGrow() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(START_SIZE);
+        sizer.recordSuccess(START_SIZE / 3, 500);
+        assertEquals(START_SIZE, sizer.getChunkSize());
+    }
+
+    public void testSlowRoundTripsShrink() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(START_SIZE);
+        sizer.recordSuccess(START_SIZE, AdaptiveChunkSizer.SHRINK_ABOVE_MILLIS + 1000);
+        assertEquals(START_SIZE / 2, sizer.getChunkSize());
+    }
+
+    public void testMiddlingRoundTripsKeepSize() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(START_SIZE);
+        sizer.recordSuccess(START_SIZE, (AdaptiveChunkSizer.GROW_BELOW_MILLIS + AdaptiveChunkSizer.SHRINK_ABOVE_MILLIS) / 2);
+        assertEquals(START_SIZE, sizer.getChunkSize());
+    }
+
+    public void testFailureShrinksAndBlocksGrowth() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(START_SIZE);
+        sizer.recordFailure();
+        assertEquals(START_SIZE / 2, sizer.getChunkSize());
+        assertEquals(0.0, sizer.getSuccessRate(), 0.001);
+
+        sizer.recordSuccess(START_SIZE / 2, 500);
+        assertEquals("success rate too low to grow", START_SIZE / 2, sizer.getChunkSize());
+    }
+
+    public void testStaysWithinLimits() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(START_SIZE);
+        for (int i = 0; i < 20; ++i)
+            sizer.recordFailure();
+        assertEquals(AdaptiveChunkSizer.MIN_CHUNK_SIZE, sizer.getChunkSize());
+
+        sizer = new AdaptiveChunkSizer(AdaptiveChunkSizer.MAX_CHUNK_SIZE * 4);
+        assertEquals(AdaptiveChunkSizer.MAX_CHUNK_SIZE, sizer.getChunkSize());
+        sizer.recordSuccess(AdaptiveChunkSizer.MAX_CHUNK_SIZE, 100);
+        assertEquals(AdaptiveChunkSizer.MAX_CHUNK_SIZE, sizer.getChunkSize());
+    }
+
+    public void testNextSizerStartsFromLastLearnedSize() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(START_SIZE);
+        sizer.recordFailure();
+        assertEquals(START_SIZE / 2, new AdaptiveChunkSizer().getChunkSize());
+    }
+}
@@ -0,0 +1,125 @@
+package org.martus.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+public class TestAttachmentCompressor extends TestCase {
+
+    private static final String CSV_LINE = "2014-03-09,Plaza de Mayo,march,verified\n";
+
+    private File dir;
+    private AttachmentCompressor compressor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("$$$TestAttachmentCompressor", null);
+        dir.delete();
+        dir.mkdirs();
+        compressor = new AttachmentCompressor(new File(dir, "compressed"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteTree(dir);
+        super.tearDown();
+    }
+
+    public void testKnownFormatsAreAlreadyCompressed() throws Exception {
+        assertTrue("jpeg", AttachmentCompressor.isAlreadyCompressed(bytes(0xFF, 0xD8, 0xFF, 0xE0)));
+        assertTrue("png", AttachmentCompressor.isAlreadyCompressed(bytes(0x89, 'P', 'N', 'G', 0x0D)));
+        assertTrue("zip", AttachmentCompressor.isAlreadyCompressed(bytes('P', 'K', 0x03, 0x04, 0x14)));
+        assertTrue("gzip", AttachmentCompressor.isAlreadyCompressed(gzip(repeat(CSV_LINE, 10))));
+        assertTrue("mp3", AttachmentCompressor.isAlreadyCompressed(bytes('I', 'D', '3', 0x04)));
+        assertTrue("mp4", AttachmentCompressor.isAlreadyCompressed(bytes(0, 0, 0, 0x18, 'f', 't', 'y', 'p', 'm', 'p', '4', '2')));
+    }
+
+    public void testTextIsNotAlreadyCompressed() throws Exception {
+        assertFalse(AttachmentCompressor.isAlreadyCompressed(repeat(CSV_LINE, 10)));
+        assertFalse("ftyp not at offset 4", AttachmentCompressor.isAlreadyCompressed(bytes('f', 't', 'y', 'p', 0, 0, 0, 0)));
+    }
+
+    public void testShortSampleIsNotMistakenForSignature() throws Exception {
+        assertFalse(AttachmentCompressor.isAlreadyCompressed(new byte[0]));
+        assertFalse(AttachmentCompressor.isAlreadyCompressed(bytes(0xFF, 0xD8)));
+        assertFalse(AttachmentCompressor.isAlreadyCompressed(bytes(0, 0, 0, 0x18, 'f', 't', 'y')));
+    }
+
+    public void testRepetitiveTextIsCompressible() throws Exception {
+        assertTrue(AttachmentCompressor.isCompressible(repeat(CSV_LINE, 100)));
+    }
+
+    public void testRandomBytesAreNotCompressible() throws Exception {
+        assertFalse(AttachmentCompressor.isCompressible(randomBytes(16 * 1024)));
+    }
+
+    public void testEmptySampleIsNotCompressible() throws Exception {
+        assertFalse(AttachmentCompressor.isCompressible(new byte[0]));
+    }
+
+    public void testCompressibleFileIsCompressed() throws Exception {
+        File attachment = createFile("events.csv", repeat(CSV_LINE, 1000));
+        File compressed = compressor.compress(attachment);
+        assertNotNull(compressed);
+        assertTrue(compressed.getName().endsWith(AttachmentCompressor.COMPRESSED_SUFFIX));
+        assertTrue(compressed.length() < attachment.length());
+    }
+
+    public void testIncompressibleFileIsLeftAlone() throws Exception {
+        assertNull(compressor.compress(createFile("noise.bin", randomBytes(16 * 1024))));
+        assertNull(compressor.compress(createFile("events.csv.gz", gzip(repeat(CSV_LINE, 1000)))));
+    }
+
+    private File createFile(String name, byte[] contents) throws Exception {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; ++i)
+            result[i] = (byte)values[i];
+        return result;
+    }
+
+    private static byte[] repeat(String line, int count) throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; ++i)
+            text.append(line);
+        return text.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] result = new byte[length];
+        new Random(1).nextBytes(result);
+        return result;
+    }
+
+    private static byte[] gzip(byte[] contents) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(contents);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children)
+                deleteTree(child);
+        }
+        file.delete();
+    }
+}
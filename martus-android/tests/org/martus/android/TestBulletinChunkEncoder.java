@@ -0,0 +1,100 @@
+package org.martus.android;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.martus.common.network.NetworkInterfaceConstants;
+import org.martus.util.StreamableBase64;
+
+import junit.framework.TestCase;
+
+public class TestBulletinChunkEncoder extends TestCase {
+
+    private static final int CHUNKS_TO_MEASURE = 200;
+
+    public void testMatchesStreamableBase64() {
+        Random random = new Random(1);
+        BulletinChunkEncoder encoder = new BulletinChunkEncoder(70 * 1024);
+        int[] lengths = {0, 1, 2, 3, 4, 5, 57, 1000, 64 * 1024, 70 * 1024};
+        for (int length : lengths) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            encoder.encode(bytes, 0, length);
+            assertEquals("length " + length, StreamableBase64.encode(bytes), encoder.getEncodedChunk());
+        }
+    }
+
+    public void testEncodesPartOfArray() {
+        byte[] bytes = "xxhello worldxx".getBytes();
+        BulletinChunkEncoder encoder = new BulletinChunkEncoder(100);
+        encoder.encode(bytes, 2, 11);
+        assertEquals(StreamableBase64.encode(bytes, 2, 11), encoder.getEncodedChunk());
+    }
+
+    public void testReadsStreamInChunks() throws Exception {
+        byte[] bytes = new byte[2500];
+        new Random(2).nextBytes(bytes);
+        BulletinChunkEncoder encoder = new BulletinChunkEncoder(1000);
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+
+        assertEquals(1000, encoder.readAndEncodeChunk(in, 1000));
+        assertEquals(StreamableBase64.encode(bytes, 0, 1000), encoder.getEncodedChunk());
+        assertEquals("limited by maxBytes", 700, encoder.readAndEncodeChunk(in, 700));
+        assertEquals(StreamableBase64.encode(bytes, 1000, 700), encoder.getEncodedChunk());
+        assertEquals(800, encoder.readAndEncodeChunk(in, 1000));
+        assertEquals(StreamableBase64.encode(bytes, 1700, 800), encoder.getEncodedChunk());
+        assertEquals(-1, encoder.readAndEncodeChunk(in, 1000));
+    }
+
+    public void testEnsureCapacityGrows() {
+        BulletinChunkEncoder encoder = new BulletinChunkEncoder(10);
+        try {
+            encoder.encode(new byte[13], 0, 13);
+            fail("chunk larger than the buffer was encoded");
+        } catch (IllegalArgumentException expected) {
+        }
+        encoder.ensureCapacity(13);
+        encoder.encode(new byte[13], 0, 13);
+        assertEquals(13, encoder.getMaxChunkSize());
+        encoder.ensureCapacity(5);
+        assertEquals("never shrinks", 13, encoder.getMaxChunkSize());
+    }
+
+    /**
+     * Once warmed up, the only thing a chunk may allocate is the String handed to the gateway.
+     */
+    public void testAllocationPerChunkIsBounded() throws Exception {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return;
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)threads;
+        if (!allocations.isThreadAllocatedMemorySupported())
+            return;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        final int chunkSize = NetworkInterfaceConstants.CLIENT_MAX_CHUNK_SIZE;
+        byte[] zip = new byte[chunkSize * CHUNKS_TO_MEASURE];
+        new Random(3).nextBytes(zip);
+        BulletinChunkEncoder encoder = new BulletinChunkEncoder(chunkSize);
+        encodeAll(encoder, zip);
+
+        final long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        long encodedChars = encodeAll(encoder, zip);
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        // two bytes a char is the most a String can take; allow a little for headers
+        long allowedPerChunk = (encodedChars / CHUNKS_TO_MEASURE) * 2 + 1024;
+        long perChunk = allocated / CHUNKS_TO_MEASURE;
+        assertTrue("allocated " + perChunk + " bytes a chunk, allowed " + allowedPerChunk, perChunk <= allowedPerChunk);
+    }
+
+    private static long encodeAll(BulletinChunkEncoder encoder, byte[] zip) throws Exception {
+        ByteArrayInputStream in = new ByteArrayInputStream(zip);
+        long encodedChars = 0;
+        while (encoder.readAndEncodeChunk(in, encoder.getMaxChunkSize()) > 0)
+            encodedChars += encoder.getEncodedChunk().length();
+        return encodedChars;
+    }
+}
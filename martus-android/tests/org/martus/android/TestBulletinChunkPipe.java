@@ -0,0 +1,96 @@
+package org.martus.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TestBulletinChunkPipe extends TestCase {
+
+    private static final int CHUNK_SIZE = 1000;
+    private static final File ZIP_FILE = new File("bulletin.zip");
+
+    public void testChunksArriveInOrder() throws Exception {
+        final byte[] zip = new byte[10 * CHUNK_SIZE + 123];
+        new Random(1).nextBytes(zip);
+        final BulletinChunkPipe pipe = new BulletinChunkPipe(CHUNK_SIZE, 2);
+        Thread producer = startProducer(pipe, zip);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int chunkCount = 0;
+        byte[] chunk;
+        while ((chunk = pipe.takeChunk()) != null) {
+            ++chunkCount;
+            boolean isLast = pipe.isAtEnd();
+            assertEquals("chunk " + chunkCount, isLast ? 123 : CHUNK_SIZE, chunk.length);
+            received.write(chunk);
+        }
+        producer.join();
+
+        assertEquals(11, chunkCount);
+        assertTrue(Arrays.equals(zip, received.toByteArray()));
+        assertEquals(zip.length, pipe.getTotalSize());
+        assertEquals(ZIP_FILE, pipe.awaitZipFile());
+    }
+
+    public void testExactMultipleOfChunkSize() throws Exception {
+        byte[] zip = new byte[3 * CHUNK_SIZE];
+        BulletinChunkPipe pipe = new BulletinChunkPipe(CHUNK_SIZE, 4);
+        pipe.getOutputStream().write(zip);
+        pipe.finish(ZIP_FILE);
+
+        assertEquals(CHUNK_SIZE, pipe.takeChunk().length);
+        assertFalse(pipe.isAtEnd());
+        assertEquals(CHUNK_SIZE, pipe.takeChunk().length);
+        assertEquals(CHUNK_SIZE, pipe.takeChunk().length);
+        assertTrue(pipe.isAtEnd());
+        assertNull(pipe.takeChunk());
+        assertEquals(zip.length, pipe.getTotalSize());
+    }
+
+    public void testFailureReachesConsumer() throws Exception {
+        BulletinChunkPipe pipe = new BulletinChunkPipe(CHUNK_SIZE, 4);
+        pipe.getOutputStream().write(new byte[CHUNK_SIZE]);
+        pipe.fail(new Exception("bad packet"));
+
+        try {
+            pipe.takeChunk();
+            fail("took a chunk after the producer failed");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("bad packet"));
+        }
+        assertNull(pipe.awaitZipFile());
+    }
+
+    public void testAbandonedPipeDoesNotBlockProducer() throws Exception {
+        byte[] zip = new byte[20 * CHUNK_SIZE];
+        BulletinChunkPipe pipe = new BulletinChunkPipe(CHUNK_SIZE, 2);
+        pipe.abandon();
+        Thread producer = startProducer(pipe, zip);
+        producer.join(5000);
+        assertFalse("producer still blocked", producer.isAlive());
+        assertEquals(ZIP_FILE, pipe.awaitZipFile());
+    }
+
+    private static Thread startProducer(final BulletinChunkPipe pipe, final byte[] zip) {
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = pipe.getOutputStream();
+                    for (int offset = 0; offset < zip.length; offset += 357)
+                        out.write(zip, offset, Math.min(357, zip.length - offset));
+                    pipe.finish(ZIP_FILE);
+                } catch (IOException e) {
+                    pipe.fail(e);
+                }
+            }
+        };
+        producer.start();
+        return producer;
+    }
+}
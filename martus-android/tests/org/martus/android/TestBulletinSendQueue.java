@@ -0,0 +1,139 @@
+package org.martus.android;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.martus.common.packet.UniversalId;
+
+import junit.framework.TestCase;
+
+public class TestBulletinSendQueue extends TestCase {
+
+    private File appDir;
+    private File zipFile;
+    private UniversalId uid;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        appDir = File.createTempFile("$$$TestBulletinSendQueue", null);
+        appDir.delete();
+        appDir.mkdirs();
+        zipFile = new File(appDir, "tmp_send_1.zip");
+        zipFile.createNewFile();
+        uid = UniversalId.createFromAccountAndLocalId("account", "local");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : appDir.listFiles())
+            file.delete();
+        appDir.delete();
+        super.tearDown();
+    }
+
+    public void testEntryIsPendingOnlyOnceZipped() throws Exception {
+        BulletinSendQueue queue = new BulletinSendQueue(appDir);
+        queue.enqueue(uid, zipFile);
+        assertNotNull(queue.getEntry(uid));
+        assertEquals("zip still being written", 0, queue.getPendingEntries().size());
+
+        writeZip(1000);
+        assertEquals(-1, queue.getConfirmedOffset(uid, zipFile));
+        queue.recordZipped(uid, zipFile);
+        assertEquals(1, queue.getPendingEntries().size());
+        assertEquals(1000, queue.getEntry(uid).getSize());
+        assertEquals(0, queue.getConfirmedOffset(uid, zipFile));
+    }
+
+    public void testRemovedBeforeZipCompletesStaysRemoved() throws Exception {
+        BulletinSendQueue queue = new BulletinSendQueue(appDir);
+        queue.enqueue(uid, zipFile);
+        queue.remove(uid);
+        assertNull(queue.getEntry(uid));
+        assertNull(new BulletinSendQueue(appDir).getEntry(uid));
+    }
+
+    public void testConfirmedOffsetSurvivesReload() throws Exception {
+        BulletinSendQueue queue = new BulletinSendQueue(appDir);
+        queue.enqueue(uid, zipFile);
+        writeZip(5000);
+        queue.recordZipped(uid, zipFile);
+        queue.recordAttempt(uid, zipFile);
+        queue.recordConfirmedOffset(uid, 2048);
+        queue.flush();
+
+        BulletinSendQueue reloaded = new BulletinSendQueue(appDir);
+        assertEquals(2048, reloaded.getConfirmedOffset(uid, zipFile));
+        assertEquals(1, reloaded.getEntry(uid).getAttempts());
+        assertTrue("in flight mark is not journaled", reloaded.markInFlight(uid));
+
+        writeZip(4000);
+        assertEquals("zip changed size", -1, reloaded.getConfirmedOffset(uid, zipFile));
+    }
+
+    public void testEnqueuedIsNotInFlightUntilUploadStarts() throws Exception {
+        BulletinSendQueue queue = new BulletinSendQueue(appDir);
+        queue.enqueue(uid, zipFile);
+        assertTrue(queue.markInFlight(uid));
+        assertFalse(queue.markInFlight(uid));
+    }
+
+    public void testOffsetsAreJournaledAtMostOncePerInterval() throws Exception {
+        FakeClockQueue queue = new FakeClockQueue(appDir);
+        queue.enqueue(uid, zipFile);
+        writeZip(50000);
+        queue.recordZipped(uid, zipFile);
+
+        queue.now += 1000;
+        queue.recordConfirmedOffset(uid, 1024);
+        queue.recordConfirmedOffset(uid, 2048);
+        assertEquals("held in memory", 2048, queue.getConfirmedOffset(uid, zipFile));
+        assertEquals("not journaled yet", 0, new BulletinSendQueue(appDir).getConfirmedOffset(uid, zipFile));
+
+        queue.now += 5000;
+        queue.recordConfirmedOffset(uid, 3072);
+        assertEquals(3072, new BulletinSendQueue(appDir).getConfirmedOffset(uid, zipFile));
+
+        queue.recordConfirmedOffset(uid, 4096);
+        assertEquals(3072, new BulletinSendQueue(appDir).getConfirmedOffset(uid, zipFile));
+        queue.flush();
+        assertEquals(4096, new BulletinSendQueue(appDir).getConfirmedOffset(uid, zipFile));
+    }
+
+    public void testClearedOffsetIsUnknown() throws Exception {
+        BulletinSendQueue queue = new BulletinSendQueue(appDir);
+        queue.enqueue(uid, zipFile);
+        writeZip(5000);
+        queue.recordZipped(uid, zipFile);
+        assertEquals(0, queue.getConfirmedOffset(uid, zipFile));
+
+        queue.clearConfirmedOffset(uid);
+        assertEquals(-1, queue.getConfirmedOffset(uid, zipFile));
+        assertEquals(-1, new BulletinSendQueue(appDir).getConfirmedOffset(uid, zipFile));
+        assertEquals("still pending", 1, queue.getPendingEntries().size());
+    }
+
+    private static class FakeClockQueue extends BulletinSendQueue {
+        long now = 1000000;
+
+        FakeClockQueue(File appDir) {
+            super(appDir);
+        }
+
+        @Override
+        long getTime() {
+            return now;
+        }
+    }
+
+    private void writeZip(int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(zipFile);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+}
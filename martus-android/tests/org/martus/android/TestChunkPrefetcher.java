@@ -0,0 +1,132 @@
+package org.martus.android;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import java.util.Vector;
+
+import org.martus.clientside.MobileClientSideNetworkGateway;
+import org.martus.clientside.MobileClientSideNetworkGateway.SignedBulletinChunk;
+import org.martus.common.crypto.MartusCrypto;
+import org.martus.common.crypto.MockMartusSecurity;
+import org.martus.common.network.ClientSideNetworkInterface;
+import org.martus.common.network.NetworkInterfaceConstants;
+import org.martus.common.packet.UniversalId;
+import org.martus.util.StreamableBase64;
+
+import junit.framework.TestCase;
+
+public class TestChunkPrefetcher extends TestCase {
+
+    private static final int CHUNK_SIZE = ChunkPrefetcher.CHUNK_SIZE;
+
+    private MartusCrypto signer;
+    private UniversalId uid;
+    private File zipFile;
+    private byte[] zip;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        signer = MockMartusSecurity.createClient();
+        uid = UniversalId.createFromAccountAndLocalId(signer.getPublicKeyString(), "local");
+        zip = new byte[2 * CHUNK_SIZE + 1234];
+        new Random(1).nextBytes(zip);
+        zipFile = File.createTempFile("$$$TestChunkPrefetcher", ".zip");
+        FileOutputStream out = new FileOutputStream(zipFile);
+        out.write(zip);
+        out.close();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        zipFile.delete();
+        super.tearDown();
+    }
+
+    public void testChunksComeInOrder() throws Exception {
+        ChunkPrefetcher prefetcher = createPrefetcher();
+        prefetcher.seek(0);
+        try {
+            assertChunk(0, CHUNK_SIZE, prefetcher.take());
+            assertChunk(CHUNK_SIZE, CHUNK_SIZE, prefetcher.take());
+            assertChunk(2 * CHUNK_SIZE, 1234, prefetcher.take());
+            assertNull(prefetcher.take());
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    public void testSeekDropsPreparedChunk() throws Exception {
+        ChunkPrefetcher prefetcher = createPrefetcher();
+        prefetcher.seek(0);
+        try {
+            prefetcher.take();
+            prefetcher.seek(1000);
+            assertChunk(1000, CHUNK_SIZE, prefetcher.take());
+            assertChunk(1000 + CHUNK_SIZE, CHUNK_SIZE, prefetcher.take());
+            assertChunk(1000 + 2 * CHUNK_SIZE, 234, prefetcher.take());
+            assertNull(prefetcher.take());
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    public void testSignedChunkIsWhatPutBulletinChunkSends() throws Exception {
+        RecordingServer recorder = new RecordingServer();
+        MobileClientSideNetworkGateway gateway = new MobileClientSideNetworkGateway(recorder.createProxy());
+
+        String data = StreamableBase64.encode(zip, 0, 100);
+        gateway.putBulletinChunk(signer, uid.getAccountId(), uid.getLocalId(), zip.length, 0, 100, data);
+        Vector sentDirectly = recorder.parameters;
+        gateway.putSignedBulletinChunk(MobileClientSideNetworkGateway.signBulletinChunk(signer,
+                uid.getAccountId(), uid.getLocalId(), zip.length, 0, 100, data));
+
+        assertEquals(sentDirectly, recorder.parameters);
+        assertEquals(signer.getPublicKeyString(), recorder.publicKey);
+        assertTrue(signer.verifySignatureOfVectorOfStrings(recorder.parameters, recorder.publicKey, recorder.signature));
+    }
+
+    private ChunkPrefetcher createPrefetcher() {
+        return new ChunkPrefetcher(uid, zipFile, zip.length, signer, new SendMetrics.Record());
+    }
+
+    private void assertChunk(int offset, int size, SignedBulletinChunk chunk) throws Exception {
+        assertNotNull("no chunk at " + offset, chunk);
+        assertEquals(offset, chunk.getChunkOffset());
+        assertEquals(size, chunk.getChunkSize());
+
+        RecordingServer recorder = new RecordingServer();
+        new MobileClientSideNetworkGateway(recorder.createProxy()).putSignedBulletinChunk(chunk);
+        assertEquals(zip.length, recorder.parameters.get(2));
+        assertEquals(offset, recorder.parameters.get(3));
+        assertEquals(StreamableBase64.encode(zip, offset, size), recorder.parameters.get(5));
+        assertTrue(signer.verifySignatureOfVectorOfStrings(recorder.parameters, recorder.publicKey, recorder.signature));
+    }
+
+    private static class RecordingServer implements InvocationHandler {
+        String publicKey;
+        Vector parameters;
+        String signature;
+
+        ClientSideNetworkInterface createProxy() {
+            return (ClientSideNetworkInterface)Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class[] {ClientSideNetworkInterface.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (!method.getName().equals("putBulletinChunk"))
+                throw new UnsupportedOperationException(method.getName());
+            publicKey = (String)args[0];
+            parameters = (Vector)args[1];
+            signature = (String)args[2];
+            Vector result = new Vector();
+            result.add(NetworkInterfaceConstants.CHUNK_OK);
+            return result;
+        }
+    }
+}
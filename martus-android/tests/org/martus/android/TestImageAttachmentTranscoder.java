@@ -0,0 +1,33 @@
+package org.martus.android;
+
+import junit.framework.TestCase;
+
+public class TestImageAttachmentTranscoder extends TestCase {
+
+    public void testPhotoJustOverMaximumIsNotSubsampled() {
+        assertEquals(1, ImageAttachmentTranscoder.getSampleSize(1025, 1024));
+        assertEquals(1, ImageAttachmentTranscoder.getSampleSize(2047, 1024));
+    }
+
+    public void testSampleSizeStopsAtMaximum() {
+        assertEquals(2, ImageAttachmentTranscoder.getSampleSize(2048, 1024));
+        assertEquals(2, ImageAttachmentTranscoder.getSampleSize(4000, 1024));
+        assertEquals(4, ImageAttachmentTranscoder.getSampleSize(4096, 1024));
+        assertEquals(8, ImageAttachmentTranscoder.getSampleSize(13000, 1600));
+    }
+
+    public void testSampleSizeIsLargestPowerOfTwoKeepingMaximum() {
+        int[] maxDimensions = {
+                640, 1024, 1600, 2048
+        };
+        for (int maxDimension : maxDimensions) {
+            for (int longestSide = maxDimension + 1; longestSide <= 20000; longestSide += 7) {
+                int sampleSize = ImageAttachmentTranscoder.getSampleSize(longestSide, maxDimension);
+                String sizes = longestSide + " to " + maxDimension;
+                assertEquals(sizes + " power of two", 0, sampleSize & (sampleSize - 1));
+                assertTrue(sizes + " below maximum", longestSide / sampleSize >= maxDimension);
+                assertTrue(sizes + " not under twice maximum", longestSide / sampleSize < 2 * maxDimension);
+            }
+        }
+    }
+}
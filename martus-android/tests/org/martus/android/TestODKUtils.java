@@ -0,0 +1,160 @@
+package org.martus.android;
+
+import java.io.ByteArrayInputStream;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.model.xform.XFormsModule;
+import org.javarosa.xform.util.XFormUtils;
+import org.martus.common.FieldSpecCollection;
+import org.martus.common.bulletin.Bulletin;
+import org.martus.common.crypto.MartusSecurity;
+import org.martus.common.crypto.MockMartusSecurity;
+import org.martus.common.fieldspec.FieldSpec;
+import org.martus.common.fieldspec.FieldType;
+import org.martus.common.fieldspec.FieldTypeBoolean;
+import org.martus.common.fieldspec.FieldTypeDate;
+import org.martus.common.fieldspec.FieldTypeDateRange;
+import org.martus.common.fieldspec.FieldTypeMultiline;
+import org.martus.common.fieldspec.FieldTypeNormal;
+import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.StreamingInstanceLoader;
+
+import junit.framework.TestCase;
+
+public class TestODKUtils extends TestCase {
+
+    private static final String DATE_RANGE_TAG = "incident";
+    private static final String START_TAG = DATE_RANGE_TAG + ODKUtils.DATE_RANGE_START_POSTFIX;
+    private static final String END_TAG = DATE_RANGE_TAG + ODKUtils.DATE_RANGE_END_POSTFIX;
+
+    // laid out the way ODKUtils.writeXml lays out a template, plus a multiple choice question
+    private static final String FORM =
+            "<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\""
+            + " xmlns:jr=\"http://openrosa.org/javarosa\"><h:head><h:title>Martus</h:title><model>"
+            + "<instance><data id=\"build_Martus\"><meta><instanceID/></meta>"
+            + "<title/><summary/><location/><eventdate/><" + START_TAG + "/><" + END_TAG + "/>"
+            + "<verified>" + ODKUtils.STRING_FALSE + "</verified><region/><tags/><hidden/>"
+            + "</data></instance>"
+            + "<itext><translation lang=\"eng\">"
+            + text("title") + text("summary") + text("location") + text("eventdate") + text(START_TAG)
+            + text(END_TAG) + text("verified") + text("region") + text("tags") + text("hidden")
+            + "</translation></itext>"
+            + "<bind nodeset=\"/data/meta/instanceID\" type=\"string\" readonly=\"true()\"/>"
+            + bind("title", "string") + bind("summary", "string") + bind("location", "string")
+            + bind("eventdate", "date") + bind(START_TAG, "date") + bind(END_TAG, "date")
+            + bind("verified", "select1") + bind("region", "select1") + bind("tags", "select")
+            + "<bind nodeset=\"/data/hidden\" type=\"string\" relevant=\"false()\"/>"
+            + "</model></h:head><h:body>"
+            + "<group appearance=\"field-list\">"
+            + input("title") + input("summary") + input("location") + input("eventdate")
+            + "</group><group appearance=\"field-list\">"
+            + input(START_TAG) + input(END_TAG)
+            + "<select1 ref=\"/data/verified\">" + label("verified")
+            + item(ODKUtils.STRING_TRUE) + item(ODKUtils.STRING_FALSE) + "</select1>"
+            + "<select1 appearance=\"minimal\" ref=\"/data/region\">" + label("region")
+            + item("north") + item("south") + "</select1>"
+            + "<select ref=\"/data/tags\">" + label("tags") + item("a") + item("b") + item("c") + "</select>"
+            + input("hidden")
+            + "</group></h:body></h:html>";
+
+    private MartusSecurity security;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        new XFormsModule().registerModule();
+        security = MockMartusSecurity.createClient();
+    }
+
+    public void testInstanceAndPromptsGiveSameBulletin() throws Exception {
+        String instance = "<data id=\"build_Martus\"><meta><instanceID>uuid:1</instanceID></meta>"
+                + "<title>Night march</title><summary/><location>Plaza de Mayo, Ciudad Autónoma</location>"
+                + "<eventdate>2014-03-09</eventdate>"
+                + "<" + START_TAG + ">2014-03-01</" + START_TAG + "><" + END_TAG + ">2014-03-15</" + END_TAG + ">"
+                + "<verified>" + ODKUtils.STRING_TRUE + "</verified><region>south</region><tags>a c</tags>"
+                + "<hidden>not relevant</hidden></data>";
+        FormController formController = loadForm(instance);
+
+        Bulletin fromInstance = createBulletin();
+        ODKUtils.populateBulletinFromInstance(fromInstance, formController.getFormDef().getMainInstance().getRoot());
+        Bulletin fromPrompts = createBulletin();
+        ODKUtils.populateBulletinFromPrompts(fromPrompts, formController);
+
+        assertEquals("Night march", fromPrompts.get("title"));
+        assertEquals("", fromPrompts.get("summary"));
+        assertEquals(FieldSpec.TRUESTRING, fromPrompts.get("verified"));
+        assertEquals("a, c", fromPrompts.get("tags"));
+        assertEquals("", fromPrompts.get("hidden"));
+        assertFalse("date range filled in", "".equals(fromPrompts.get(DATE_RANGE_TAG)));
+        assertSameFields(fromPrompts, fromInstance);
+    }
+
+    public void testUnansweredInstanceGivesSameBulletin() throws Exception {
+        FormController formController = loadForm("<data id=\"build_Martus\"><meta><instanceID/></meta>"
+                + "<title/><summary/><location/><eventdate/><" + START_TAG + "/><" + END_TAG + "/>"
+                + "<verified>" + ODKUtils.STRING_FALSE + "</verified><region/><tags/><hidden/></data>");
+
+        Bulletin fromInstance = createBulletin();
+        ODKUtils.populateBulletinFromInstance(fromInstance, formController.getFormDef().getMainInstance().getRoot());
+        Bulletin fromPrompts = createBulletin();
+        ODKUtils.populateBulletinFromPrompts(fromPrompts, formController);
+
+        assertEquals(FieldSpec.FALSESTRING, fromPrompts.get("verified"));
+        assertSameFields(fromPrompts, fromInstance);
+    }
+
+    private static FormController loadForm(String instance) throws Exception {
+        FormDef fd = XFormUtils.getFormFromInputStream(new ByteArrayInputStream(FORM.getBytes("UTF-8")));
+        FormEntryController fec = new FormEntryController(new FormEntryModel(fd));
+        assertTrue(new StreamingInstanceLoader(fd).load(new ByteArrayInputStream(instance.getBytes("UTF-8"))));
+        fd.initialize(false);
+        return new FormController(null, fec, null);
+    }
+
+    private Bulletin createBulletin() throws Exception {
+        FieldSpec[] topFields = {
+                field("title", new FieldTypeNormal()),
+                field("summary", new FieldTypeMultiline()),
+                field("location", new FieldTypeNormal()),
+                field("eventdate", new FieldTypeDate()),
+                field(DATE_RANGE_TAG, new FieldTypeDateRange()),
+                field("verified", new FieldTypeBoolean()),
+                field("region", new FieldTypeNormal()),
+                field("tags", new FieldTypeNormal()),
+                field("hidden", new FieldTypeNormal()),
+        };
+        return new Bulletin(security, new FieldSpecCollection(topFields), new FieldSpecCollection());
+    }
+
+    private static void assertSameFields(Bulletin expected, Bulletin actual) {
+        FieldSpec[] fields = expected.getTopSectionFieldSpecs().asArray();
+        for (FieldSpec field : fields)
+            assertEquals(field.getTag(), expected.get(field.getTag()), actual.get(field.getTag()));
+    }
+
+    private static FieldSpec field(String tag, FieldType type) {
+        return FieldSpec.createCustomField(tag, tag, type);
+    }
+
+    private static String text(String tag) {
+        return "<text id=\"/data/" + tag + ":label\"><value>" + tag + "</value></text>";
+    }
+
+    private static String bind(String tag, String type) {
+        return "<bind nodeset=\"/data/" + tag + "\" type=\"" + type + "\"/>";
+    }
+
+    private static String label(String tag) {
+        return "<label ref=\"jr:itext('/data/" + tag + ":label')\"/>";
+    }
+
+    private static String input(String tag) {
+        return "<input ref=\"/data/" + tag + "\">" + label(tag) + "</input>";
+    }
+
+    private static String item(String value) {
+        return "<item><label>" + value + "</label><value>" + value + "</value></item>";
+    }
+}
@@ -0,0 +1,97 @@
+package org.martus.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestProgressAggregator extends TestCase {
+
+    private RecordingAggregator aggregator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        aggregator = new RecordingAggregator();
+    }
+
+    public void testUploadsAreWeightedBySize() {
+        aggregator.addUpload("small", 100);
+        aggregator.addUpload("large", 900);
+        aggregator.updateProgress("small", 100);
+        assertEquals(10, aggregator.getCombinedProgress());
+        aggregator.updateProgress("large", 50);
+        assertEquals(55, aggregator.getCombinedProgress());
+    }
+
+    public void testFinishedUploadCountsAsComplete() {
+        aggregator.addUpload("first", 1);
+        aggregator.addUpload("second", 1);
+        aggregator.removeUpload("first");
+        assertEquals(50, aggregator.getCombinedProgress());
+        assertEquals("finishing posts at once", 50, aggregator.lastPosted());
+    }
+
+    public void testSmallStepsAreNotPosted() {
+        aggregator.addUpload("bulletin", 1);
+        aggregator.now = ProgressAggregator.MIN_INTERVAL_MILLIS;
+        aggregator.updateProgress("bulletin", ProgressAggregator.MIN_PROGRESS_DELTA - 1);
+        assertTrue(aggregator.posted.isEmpty());
+
+        aggregator.updateProgress("bulletin", ProgressAggregator.MIN_PROGRESS_DELTA);
+        assertEquals(ProgressAggregator.MIN_PROGRESS_DELTA, aggregator.lastPosted());
+    }
+
+    public void testFrequentUpdatesAreNotPosted() {
+        aggregator.addUpload("bulletin", 1);
+        aggregator.now = ProgressAggregator.MIN_INTERVAL_MILLIS;
+        aggregator.updateProgress("bulletin", 10);
+        aggregator.now += ProgressAggregator.MIN_INTERVAL_MILLIS - 1;
+        aggregator.updateProgress("bulletin", 20);
+        assertEquals(1, aggregator.posted.size());
+
+        aggregator.now += 1;
+        aggregator.updateProgress("bulletin", 30);
+        assertEquals(30, aggregator.lastPosted());
+    }
+
+    public void testCompletionIsAlwaysPosted() {
+        aggregator.addUpload("bulletin", 1);
+        aggregator.now = ProgressAggregator.MIN_INTERVAL_MILLIS;
+        aggregator.updateProgress("bulletin", 99);
+        aggregator.updateProgress("bulletin", 100);
+        assertEquals(100, aggregator.lastPosted());
+    }
+
+    public void testProgressNeverGoesBack() {
+        aggregator.addUpload("bulletin", 1);
+        aggregator.updateProgress("bulletin", 40);
+        aggregator.updateProgress("bulletin", 30);
+        assertEquals(40, aggregator.getCombinedProgress());
+        aggregator.updateProgress("unknown", 90);
+        assertEquals(40, aggregator.getCombinedProgress());
+    }
+
+    private static class RecordingAggregator extends ProgressAggregator {
+        final List<Integer> posted = new ArrayList<Integer>();
+        long now;
+
+        RecordingAggregator() {
+            super(null, "sending");
+        }
+
+        @Override
+        long getTime() {
+            return now;
+        }
+
+        @Override
+        void postProgress(int progress) {
+            posted.add(progress);
+        }
+
+        int lastPosted() {
+            return posted.get(posted.size() - 1);
+        }
+    }
+}
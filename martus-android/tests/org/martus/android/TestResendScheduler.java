@@ -0,0 +1,124 @@
+package org.martus.android;
+
+import java.io.File;
+import java.util.Random;
+
+import org.martus.common.packet.UniversalId;
+
+import junit.framework.TestCase;
+
+public class TestResendScheduler extends TestCase {
+
+    private static final long NOW = 1000 * 1000;
+    private static final double LARGEST_JITTER = 0.999999;
+
+    private File appDir;
+    private File zipFile;
+    private UniversalId uid;
+    private BulletinSendQueue queue;
+    private FixedRandom random;
+    private ResendScheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        appDir = File.createTempFile("$$$TestResendScheduler", null);
+        appDir.delete();
+        appDir.mkdirs();
+        zipFile = new File(appDir, "tmp_send_1.zip");
+        zipFile.createNewFile();
+        uid = UniversalId.createFromAccountAndLocalId("account", "local");
+        queue = new BulletinSendQueue(appDir);
+        random = new FixedRandom();
+        scheduler = new FakeClockScheduler(queue, random);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : appDir.listFiles())
+            file.delete();
+        appDir.delete();
+        super.tearDown();
+    }
+
+    public void testBackoffDoublesWithEachAttempt() {
+        long base = ResendScheduler.BASE_BACKOFF_MILLIS;
+        assertEquals(base / 2, scheduler.getBackoffMillis(1));
+        assertEquals(base, scheduler.getBackoffMillis(2));
+        assertEquals(base * 2, scheduler.getBackoffMillis(3));
+        assertEquals(base * 4, scheduler.getBackoffMillis(4));
+        assertEquals("no attempt yet counts as the first", base / 2, scheduler.getBackoffMillis(0));
+    }
+
+    public void testBackoffIsCapped() {
+        long max = ResendScheduler.MAX_BACKOFF_MILLIS;
+        assertTrue("cap reached after a few attempts", scheduler.getBackoffMillis(7) < max / 2);
+        assertEquals(max / 2, scheduler.getBackoffMillis(8));
+        assertEquals(max / 2, scheduler.getBackoffMillis(30));
+        assertEquals("no overflow", max / 2, scheduler.getBackoffMillis(Integer.MAX_VALUE));
+
+        random.value = LARGEST_JITTER;
+        assertTrue(scheduler.getBackoffMillis(Integer.MAX_VALUE) < max);
+    }
+
+    public void testJitterIsWithinUpperHalfOfBackoff() {
+        ResendScheduler jittered = new ResendScheduler(queue, new Random(1));
+        for (int attempts = 1; attempts <= 10; ++attempts) {
+            long backoff = Math.min(ResendScheduler.MAX_BACKOFF_MILLIS, ResendScheduler.BASE_BACKOFF_MILLIS << (attempts - 1));
+            for (int i = 0; i < 1000; ++i) {
+                long delay = jittered.getBackoffMillis(attempts);
+                assertTrue(attempts + " attempts: " + delay, delay >= backoff / 2);
+                assertTrue(attempts + " attempts: " + delay, delay < backoff);
+            }
+        }
+    }
+
+    public void testBulletinNeverFailedIsDue() {
+        assertTrue(scheduler.isDue(uid, NOW));
+    }
+
+    public void testFailedBulletinIsDueWithinBatchWindow() {
+        recordAttempts(4);
+        scheduler.recordFailure(uid);
+        long dueMillis = NOW + ResendScheduler.BASE_BACKOFF_MILLIS * 4;
+
+        long window = ResendScheduler.BATCH_WINDOW_MILLIS;
+        assertFalse(scheduler.isDue(uid, NOW));
+        assertFalse(scheduler.isDue(uid, dueMillis - window - 1));
+        assertTrue(scheduler.isDue(uid, dueMillis - window));
+        assertTrue(scheduler.isDue(uid, dueMillis));
+    }
+
+    public void testSuccessForgetsBackoff() {
+        recordAttempts(10);
+        scheduler.recordFailure(uid);
+        assertFalse(scheduler.isDue(uid, NOW));
+        scheduler.recordSuccess(uid);
+        assertTrue(scheduler.isDue(uid, NOW));
+    }
+
+    private void recordAttempts(int attempts) {
+        for (int i = 0; i < attempts; ++i)
+            queue.recordAttempt(uid, zipFile);
+    }
+
+    private static class FixedRandom extends Random {
+        double value;
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+
+    private static class FakeClockScheduler extends ResendScheduler {
+        FakeClockScheduler(BulletinSendQueue sendQueue, Random random) {
+            super(sendQueue, random);
+        }
+
+        @Override
+        long getTime() {
+            return NOW;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.martus.android;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import org.martus.common.packet.UniversalId;
+
+import junit.framework.TestCase;
+
+public class TestSendMetrics extends TestCase {
+
+    private static final int THREADS = 8;
+    private static final int SENDS_PER_THREAD = 100;
+
+    private File dir;
+    private SendMetrics metrics;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("$$$TestSendMetrics", null);
+        dir.delete();
+        dir.mkdirs();
+        metrics = new SendMetrics(dir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+        super.tearDown();
+    }
+
+    public void testConcurrentSendsWriteValidTimestamps() throws Exception {
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; ++i) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int send = 0; send < SENDS_PER_THREAD; ++send) {
+                        UniversalId uid = UniversalId.createFromAccountAndLocalId("account", "B-" + thread + "-" + send);
+                        metrics.getRecord(uid).addStageTime(SendMetrics.STAGE_ZIP, send);
+                        metrics.finish(uid, "ok");
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        int lines = checkLines(new File(dir, SendMetrics.METRICS_FILE + ".1")) + checkLines(new File(dir, SendMetrics.METRICS_FILE));
+        assertEquals(THREADS * SENDS_PER_THREAD, lines);
+    }
+
+    // a line may have gone to the rolled over file
+    private static int checkLines(File file) throws Exception {
+        if (!file.exists())
+            return 0;
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+        format.setLenient(false);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        int lines = 0;
+        try {
+            String line;
+            while (null != (line = reader.readLine())) {
+                String timestamp = line.substring(0, line.indexOf(' '));
+                assertEquals(timestamp, format.format(format.parse(timestamp)));
+                assertTrue(line, line.contains(" result=ok source=send zip_ms="));
+                ++lines;
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    public void testClearDeletesBothFiles() throws Exception {
+        UniversalId uid = UniversalId.createFromAccountAndLocalId("account", "B-1");
+        metrics.getRecord(uid);
+        metrics.finish(uid, "ok");
+        File rolledOver = new File(dir, SendMetrics.METRICS_FILE + ".1");
+        new FileOutputStream(rolledOver).close();
+
+        metrics.clear();
+        assertFalse(new File(dir, SendMetrics.METRICS_FILE).exists());
+        assertFalse(rolledOver.exists());
+    }
+}
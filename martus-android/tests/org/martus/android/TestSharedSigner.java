@@ -0,0 +1,70 @@
+package org.martus.android;
+
+import org.martus.common.crypto.MartusSecurity;
+import org.martus.common.crypto.MockMartusSecurity;
+
+import junit.framework.TestCase;
+
+public class TestSharedSigner extends TestCase {
+
+    private MartusSecurity original;
+    private SharedSigner sharedSigner;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        original = MockMartusSecurity.createClient();
+        sharedSigner = new SharedSigner();
+    }
+
+    public void testUsersShareOneCopy() throws Exception {
+        MartusSecurity first = sharedSigner.acquire(original);
+        MartusSecurity second = sharedSigner.acquire(original);
+        assertNotSame(original, first);
+        assertSame(first, second);
+        assertEquals(original.getPublicKeyString(), first.getPublicKeyString());
+    }
+
+    public void testCopyIsWipedWhenLastUserReleases() throws Exception {
+        MartusSecurity first = sharedSigner.acquire(original);
+        sharedSigner.acquire(original);
+
+        sharedSigner.release(first);
+        assertTrue("still has a user", first.hasKeyPair());
+        sharedSigner.release(first);
+        assertFalse(first.hasKeyPair());
+        assertTrue("original is never wiped", original.hasKeyPair());
+
+        MartusSecurity next = sharedSigner.acquire(original);
+        assertNotSame(first, next);
+        assertTrue(next.hasKeyPair());
+    }
+
+    public void testOtherAccountGetsItsOwnCopy() throws Exception {
+        MartusSecurity mine = sharedSigner.acquire(original);
+        MartusSecurity other = MockMartusSecurity.createOtherClient();
+        MartusSecurity theirs = sharedSigner.acquire(other);
+        assertNotSame(mine, theirs);
+        assertEquals(other.getPublicKeyString(), theirs.getPublicKeyString());
+
+        assertTrue("old copy kept for the send still using it", mine.hasKeyPair());
+        sharedSigner.release(mine);
+        assertFalse(mine.hasKeyPair());
+        assertTrue(theirs.hasKeyPair());
+        assertSame(theirs, sharedSigner.acquire(other));
+    }
+
+    public void testNoKeyPairGivesNoSigner() throws Exception {
+        original.clearKeyPair();
+        assertNull(sharedSigner.acquire(original));
+    }
+
+    public void testSignerNotAcquiredIsWiped() throws Exception {
+        sharedSigner.release(null);
+        MartusSecurity shared = sharedSigner.acquire(original);
+        MartusSecurity stranger = MockMartusSecurity.createOtherClient();
+        sharedSigner.release(stranger);
+        assertFalse(stranger.hasKeyPair());
+        assertTrue(shared.hasKeyPair());
+    }
+}
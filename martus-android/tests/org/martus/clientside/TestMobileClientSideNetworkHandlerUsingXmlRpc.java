@@ -0,0 +1,62 @@
+package org.martus.clientside;
+
+import java.net.ServerSocket;
+import java.util.Vector;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.xmlrpc.util.SAXParsers;
+import org.martus.common.network.PassThroughTransportWrapper;
+
+import junit.framework.TestCase;
+
+public class TestMobileClientSideNetworkHandlerUsingXmlRpc extends TestCase {
+
+    private static final String SERVER = "127.0.0.1";
+    private static final int CALLS = 2000;
+
+    private int closedPort;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ClientSideNetworkHandlerUsingXmlRpc.addAllowedServer(SERVER);
+        ServerSocket socket = new ServerSocket(0);
+        closedPort = socket.getLocalPort();
+        socket.close();
+    }
+
+    /**
+     * Every call used to build a client and install a new SAXParserFactory, and the old ones were
+     * kept alive; repeated calls must now leave one client per url and one factory behind.
+     */
+    public void testRepeatedCallsDoNotAccumulateClients() throws Exception {
+        MobileClientSideNetworkHandlerUsingXmlRpc handler = new MobileClientSideNetworkHandlerUsingXmlRpc(SERVER,
+                new int[] {closedPort}, new PassThroughTransportWrapper());
+        callRefusedServer(handler, closedPort);
+        SAXParserFactory factory = SAXParsers.getSAXParserFactory();
+
+        for (int i = 0; i < CALLS; ++i)
+            callRefusedServer(handler, closedPort);
+
+        assertEquals(1, handler.getPooledClientCount());
+        assertSame("parser factory replaced", factory, SAXParsers.getSAXParserFactory());
+    }
+
+    public void testOneClientPerServerUrl() throws Exception {
+        MobileClientSideNetworkHandlerUsingXmlRpc handler = new MobileClientSideNetworkHandlerUsingXmlRpc(SERVER,
+                new int[] {closedPort}, new PassThroughTransportWrapper());
+        callRefusedServer(handler, closedPort);
+        callRefusedServer(handler, closedPort + 1);
+        callRefusedServer(handler, closedPort);
+        assertEquals(2, handler.getPooledClientCount());
+    }
+
+    private static void callRefusedServer(MobileClientSideNetworkHandlerUsingXmlRpc handler, int port) {
+        try {
+            handler.executeXmlRpc(SERVER, "ping", new Vector(), port);
+            fail("call to a closed port succeeded");
+        } catch (Exception expected) {
+        }
+    }
+}
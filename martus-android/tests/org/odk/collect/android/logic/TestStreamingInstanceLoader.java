@@ -0,0 +1,205 @@
+package org.odk.collect.android.logic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.model.xform.XFormsModule;
+import org.javarosa.xform.parse.XFormParser;
+import org.javarosa.xform.util.XFormUtils;
+import org.xmlpull.v1.XmlPullParserException;
+
+import junit.framework.TestCase;
+
+public class TestStreamingInstanceLoader extends TestCase {
+
+    private static final int MANY_REPEATS = 10000;
+
+    private static final String FORM =
+            "<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">"
+            + "<h:head><h:title>Repeats</h:title><model><instance><data id=\"repeats\">"
+            + "<name/><item><label/><count/></item>"
+            + "</data></instance>"
+            + "<bind nodeset=\"/data/name\" type=\"string\"/>"
+            + "<bind nodeset=\"/data/item/label\" type=\"string\"/>"
+            + "<bind nodeset=\"/data/item/count\" type=\"int\"/>"
+            + "</model></h:head><h:body>"
+            + "<input ref=\"/data/name\"><label>Name</label></input>"
+            + "<group ref=\"/data/item\"><label>Item</label><repeat nodeset=\"/data/item\">"
+            + "<input ref=\"/data/item/label\"><label>Label</label></input>"
+            + "<input ref=\"/data/item/count\"><label>Count</label></input>"
+            + "</repeat></group>"
+            + "</h:body></h:html>";
+
+    private FormDef form;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        new XFormsModule().registerModule();
+        form = parseForm();
+    }
+
+    public void testSameResultAsRestoreDataModel() throws Exception {
+        byte[] saved = createInstance(3);
+        assertTrue(new StreamingInstanceLoader(form).load(new ByteArrayInputStream(saved)));
+
+        FormDef expected = parseForm();
+        restoreDataModel(expected, saved);
+        assertSameTree(expected.getInstance().getRoot(), form.getInstance().getRoot());
+    }
+
+    public void testOtherFormsInstanceIsRefused() throws Exception {
+        TreeElement root = form.getInstance().getRoot();
+        byte[] saved = "<other><name>x</name></other>".getBytes("UTF-8");
+        assertFalse(new StreamingInstanceLoader(form).load(new ByteArrayInputStream(saved)));
+        assertSame(root, form.getInstance().getRoot());
+    }
+
+    public void testFailedLoadLeavesInstanceAsItWas() throws Exception {
+        TreeElement root = form.getInstance().getRoot();
+        int children = root.getNumChildren();
+        byte[] saved = createInstance(5);
+        byte[] truncated = new byte[saved.length / 2];
+        System.arraycopy(saved, 0, truncated, 0, truncated.length);
+        try {
+            new StreamingInstanceLoader(form).load(new ByteArrayInputStream(truncated));
+            fail("truncated instance loaded");
+        } catch (XmlPullParserException expected) {
+        }
+        assertSame(root, form.getInstance().getRoot());
+        assertEquals(children, root.getNumChildren());
+        assertNull(root.getChild("name", 0).getValue());
+    }
+
+    /**
+     * Restoring a large instance used to hold the bytes, a kxml Document and a parsed TreeElement
+     * tree next to the filled copy of the template; streaming holds only the filled copy.
+     */
+    public void testTenThousandRepeatsUseLessHeap() throws Exception {
+        File savedFile = File.createTempFile("$$$TestStreamingInstanceLoader", ".xml");
+        try {
+            writeInstance(savedFile, MANY_REPEATS);
+
+            long baseline = resetPeakHeap();
+            long startMillis = System.currentTimeMillis();
+            InputStream in = new FileInputStream(savedFile);
+            try {
+                assertTrue(new StreamingInstanceLoader(form).load(in));
+            } finally {
+                in.close();
+            }
+            long streamingMillis = System.currentTimeMillis() - startMillis;
+            long streamingPeak = getPeakHeap() - baseline;
+            assertEquals(MANY_REPEATS, form.getInstance().getRoot().getChildMultiplicity("item"));
+            form = null;
+
+            FormDef restored = parseForm();
+            baseline = resetPeakHeap();
+            startMillis = System.currentTimeMillis();
+            restoreDataModel(restored, readFile(savedFile));
+            long restoreMillis = System.currentTimeMillis() - startMillis;
+            long restorePeak = getPeakHeap() - baseline;
+            assertEquals(MANY_REPEATS, restored.getInstance().getRoot().getChildMultiplicity("item"));
+
+            System.out.println(MANY_REPEATS + " repeats, " + savedFile.length() / 1024 + " KB instance: streamed "
+                    + streamingMillis + " ms, peak heap +" + streamingPeak / 1024 + " KB; restoreDataModel "
+                    + restoreMillis + " ms, peak heap +" + restorePeak / 1024 + " KB");
+            assertTrue("streaming peak " + streamingPeak + " not below " + restorePeak, streamingPeak < restorePeak);
+        } finally {
+            savedFile.delete();
+        }
+    }
+
+    // what FormLoaderTask.importData did before the instance was streamed
+    private static void restoreDataModel(FormDef fd, byte[] saved) {
+        TreeElement savedRoot = XFormParser.restoreDataModel(saved, null).getRoot();
+        TreeElement templateRoot = fd.getInstance().getRoot().deepCopy(true);
+        templateRoot.populate(savedRoot, fd);
+        fd.getInstance().setRoot(templateRoot);
+    }
+
+    private static void assertSameTree(TreeElement expected, TreeElement actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getName(), expected.getMult(), actual.getMult());
+        assertEquals(expected.getName(), expected.isRelevant(), actual.isRelevant());
+        assertEquals(expected.getName(), expected.getValue() == null ? null : expected.getValue().getDisplayText(),
+                actual.getValue() == null ? null : actual.getValue().getDisplayText());
+        assertEquals(expected.getName(), expected.getNumChildren(), actual.getNumChildren());
+        for (int i = 0; i < expected.getNumChildren(); i++)
+            assertSameTree(expected.getChildAt(i), actual.getChildAt(i));
+    }
+
+    private static FormDef parseForm() throws Exception {
+        return XFormUtils.getFormFromInputStream(new ByteArrayInputStream(FORM.getBytes("UTF-8")));
+    }
+
+    private static byte[] createInstance(int repeats) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeInstance(out, repeats);
+        return out.toByteArray();
+    }
+
+    private static void writeInstance(File file, int repeats) throws Exception {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            writeInstance(out, repeats);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeInstance(OutputStream stream, int repeats) throws Exception {
+        Writer out = new OutputStreamWriter(stream, "UTF-8");
+        out.write("<data id=\"repeats\"><name>Saved name</name>");
+        for (int i = 0; i < repeats; ++i)
+            out.write("<item><label>Item " + i + "</label><count>" + i + "</count></item>");
+        out.write("</data>");
+        out.flush();
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        byte[] bytes = new byte[(int)file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length)
+                offset += in.read(bytes, offset, bytes.length - offset);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static long resetPeakHeap() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,88 @@
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.ExtUtil;
+
+import junit.framework.TestCase;
+
+/**
+ * Times the three ways FormLoaderTask can get a FormDef for a large form: parsing the XForm,
+ * reading a .formdef the way it did before snapshots (a DataInputStream straight over the file),
+ * and reading the memory mapped snapshot through FormDefSnapshot.
+ */
+public class BenchmarkFormOpen extends TestCase {
+
+    private static final int RUNS = 5;
+    private static final int QUESTIONS = 300;
+    private static final int CHOICES_PER_QUESTION = 40;
+    private static final long SCHEMA_TAG = 1;
+
+    private File legacyFile;
+    private File snapshotFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestFormDefSnapshot.registerPrototypes();
+        legacyFile = File.createTempFile("$$$BenchmarkFormOpen", ".legacy");
+        snapshotFile = File.createTempFile("$$$BenchmarkFormOpen", ".formdef");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        legacyFile.delete();
+        snapshotFile.delete();
+        super.tearDown();
+    }
+
+    public void testLargeForm() throws Exception {
+        String xml = TestFormDefSnapshot.createForm(QUESTIONS, CHOICES_PER_QUESTION);
+        FormDef fd = TestFormDefSnapshot.parseForm(xml);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(legacyFile)));
+        try {
+            fd.writeExternal(out);
+        } finally {
+            out.close();
+        }
+        FormDefSnapshot.write(fd, snapshotFile, SCHEMA_TAG);
+
+        long bestParseMillis = Long.MAX_VALUE;
+        long bestLegacyMillis = Long.MAX_VALUE;
+        long bestSnapshotMillis = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; ++run) {
+            long startMillis = System.currentTimeMillis();
+            TestFormDefSnapshot.parseForm(xml);
+            bestParseMillis = Math.min(bestParseMillis, System.currentTimeMillis() - startMillis);
+
+            startMillis = System.currentTimeMillis();
+            readLegacy();
+            bestLegacyMillis = Math.min(bestLegacyMillis, System.currentTimeMillis() - startMillis);
+
+            startMillis = System.currentTimeMillis();
+            assertNotNull(FormDefSnapshot.read(snapshotFile, SCHEMA_TAG));
+            bestSnapshotMillis = Math.min(bestSnapshotMillis, System.currentTimeMillis() - startMillis);
+        }
+        System.out.println(QUESTIONS + " questions x " + CHOICES_PER_QUESTION + " choices (" + xml.length() / 1024
+                + " KB XForm, " + snapshotFile.length() / 1024 + " KB snapshot): parse " + bestParseMillis
+                + " ms, unbuffered .formdef " + bestLegacyMillis + " ms, mapped snapshot " + bestSnapshotMillis
+                + " ms (best of " + RUNS + ")");
+    }
+
+    // what FormLoaderTask.deserializeFormDef did before snapshots
+    private void readLegacy() throws Exception {
+        FileInputStream fis = new FileInputStream(legacyFile);
+        try {
+            FormDef read = new FormDef();
+            read.readExternal(new DataInputStream(fis), ExtUtil.defaultPrototypes());
+        } finally {
+            fis.close();
+        }
+    }
+}
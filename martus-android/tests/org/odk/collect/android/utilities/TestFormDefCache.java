@@ -0,0 +1,145 @@
+package org.odk.collect.android.utilities;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+public class TestFormDefCache extends TestCase {
+
+    private static final long FORM_MODIFIED = 1400000000000L;
+    private static final long FORMDEF_BYTES = FormDefCache.MAX_CACHE_BYTES / 3 + 1;
+
+    private File dir;
+    private File cacheDir;
+    private File form;
+    private FormDefCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("$$$TestFormDefCache", null);
+        dir.delete();
+        cacheDir = new File(dir, "cache");
+        cacheDir.mkdirs();
+        form = new File(dir, "formulário.xml");
+        writeForm("<h:html>first</h:html>", FORM_MODIFIED);
+        cache = new FormDefCache(cacheDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteTree(dir);
+        super.tearDown();
+    }
+
+    public void testUnchangedFormIsNotHashedAgain() throws Exception {
+        String hash = cache.getHash(form);
+        assertEquals(FileUtils.getMd5Hash(form), hash);
+
+        // same size and timestamp, so the index answers without reading the file
+        writeForm("<h:html>other</h:html>", FORM_MODIFIED);
+        assertEquals(hash, cache.getHash(form));
+        assertEquals("index read back", hash, new FormDefCache(cacheDir).getHash(form));
+    }
+
+    public void testChangedTimestampInvalidates() throws Exception {
+        String hash = cache.getHash(form);
+        writeForm("<h:html>other</h:html>", FORM_MODIFIED + 1000);
+        String changed = cache.getHash(form);
+        assertFalse(hash.equals(changed));
+        assertEquals(FileUtils.getMd5Hash(form), changed);
+    }
+
+    public void testChangedSizeInvalidates() throws Exception {
+        String hash = cache.getHash(form);
+        writeForm("<h:html>longer</h:html>", FORM_MODIFIED);
+        String changed = cache.getHash(form);
+        assertFalse(hash.equals(changed));
+        assertEquals(FileUtils.getMd5Hash(form), changed);
+    }
+
+    public void testJustModifiedFormIsNotIndexed() throws Exception {
+        writeForm("<h:html>first</h:html>", System.currentTimeMillis());
+        String hash = cache.getHash(form);
+        writeForm("<h:html>other</h:html>", form.lastModified());
+        assertFalse(hash.equals(cache.getHash(form)));
+    }
+
+    public void testTrimKeepsCacheUnderLimit() throws Exception {
+        File oldest = createFormDef("a", 1000);
+        File middle = createFormDef("b", 2000);
+        File newest = createFormDef("c", 3000);
+        cache.trim(newest);
+        assertFalse(oldest.exists());
+        assertTrue(middle.exists());
+        assertTrue(newest.exists());
+    }
+
+    public void testTrimNeverDeletesKept() throws Exception {
+        File oldest = createFormDef("a", 1000);
+        File middle = createFormDef("b", 2000);
+        File newest = createFormDef("c", 3000);
+        cache.trim(oldest);
+        assertTrue(oldest.exists());
+        assertFalse(middle.exists());
+        assertTrue(newest.exists());
+    }
+
+    public void testTouchedFormDefIsEvictedLast() throws Exception {
+        File oldest = createFormDef("a", 1000);
+        File middle = createFormDef("b", 2000);
+        File newest = createFormDef("c", 3000);
+        cache.touch(oldest);
+        cache.trim(newest);
+        assertTrue(oldest.exists());
+        assertFalse(middle.exists());
+        assertTrue(newest.exists());
+    }
+
+    public void testTrimLeavesCacheUnderLimitAlone() throws Exception {
+        File oldest = createFormDef("a", 1000);
+        File newest = createFormDef("b", 2000);
+        File notFormDef = new File(cacheDir, "c.tmp");
+        setLength(notFormDef, FORMDEF_BYTES);
+        cache.trim(newest);
+        assertTrue(oldest.exists());
+        assertTrue(newest.exists());
+    }
+
+    private void writeForm(String contents, long lastModified) throws Exception {
+        FileOutputStream out = new FileOutputStream(form);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        form.setLastModified(lastModified);
+    }
+
+    private File createFormDef(String hash, long lastUsed) throws Exception {
+        File formDef = cache.getFormDefFile(hash);
+        setLength(formDef, FORMDEF_BYTES);
+        formDef.setLastModified(lastUsed);
+        return formDef;
+    }
+
+    private static void setLength(File file, long length) throws Exception {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(length);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children)
+                deleteTree(child);
+        }
+        file.delete();
+    }
+}
@@ -2,13 +2,20 @@
 package org.odk.collect.android.database;
 
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.BatchedInserts;
+import org.odk.collect.android.utilities.RowDiff;
 
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class ItemsetDbAdapter {
 
     public static final String KEY_ID = "_id";
@@ -19,8 +26,14 @@ public class ItemsetDbAdapter {
 
     private static final String DATABASE_NAME = "itemsets.db";
     private static final String DATABASE_TABLE = "itemset_";
+    private static final String INDEX_PREFIX = "itemset_index_";
     private static final int DATABASE_VERSION = 2;
 
+    private static final int ROWS_PER_TRANSACTION = 1000;
+    private static final String KEY_LIST_NAME = "list_name";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_LABEL = "label";
+
     private static final String ITEMSET_TABLE = "itemsets";
     private static final String KEY_ITEMSET_HASH = "hash";
     private static final String KEY_PATH = "path";
@@ -89,7 +102,25 @@ public class ItemsetDbAdapter {
         mDbHelper.close();
     }
 
-    public boolean createTable(String formHash, String[] columns, String path) {
+    /**
+     * Creates the table a csv is read into. The csv is only recorded in the itemsets table once
+     * all of its rows are in, by {@link BulkInserter#finish}, so a table left by an import that
+     * never finished is dropped here first.
+     */
+    public boolean createTable(String formHash, String[] columns) {
+        String[] statements = getCreateTableStatements(formHash, columns);
+        Log.i(TAG, "create string: " + statements[1]);
+        for (String statement : statements) {
+            mDb.execSQL(statement);
+        }
+        return true;
+    }
+
+
+    /**
+     * @return the statements {@link #createTable} runs: dropping the table, then creating it
+     */
+    static String[] getCreateTableStatements(String formHash, String[] columns) {
         StringBuilder sb = new StringBuilder();
         sb.append("create table " + DATABASE_TABLE + formHash
                 + " (_id integer primary key autoincrement ");
@@ -100,16 +131,9 @@ public class ItemsetDbAdapter {
         }
         sb.append(");");
 
-        String tableCreate = sb.toString();
-        Log.i(TAG, "create string: " + tableCreate);
-        mDb.execSQL(tableCreate);
-
-        ContentValues cv = new ContentValues();
-        cv.put(KEY_ITEMSET_HASH, formHash);
-        cv.put(KEY_PATH, path);
-        mDb.insert(ITEMSET_TABLE, null, cv);
-
-        return true;
+        return new String[] {
+                "DROP TABLE IF EXISTS " + DATABASE_TABLE + formHash, sb.toString()
+        };
     }
 
     public boolean addRow(String tableName, String[] columns, String[] newRow) {
@@ -124,6 +148,373 @@ public class ItemsetDbAdapter {
         return true;
     }
 
+    /**
+     * Starts loading rows into the table made by {@link #createTable}. Rows go in through one
+     * compiled insert statement, committed every ROWS_PER_TRANSACTION rows, and the table is
+     * indexed for ItemsetWidget's lookups once they are all in.
+     *
+     * @param path the csv, which is recorded against formHash when the last rows are committed
+     */
+    public BulkInserter startBulkInsert(String formHash, String[] columns, String path) {
+        return new BulkInserter(formHash, columns, path);
+    }
+
+
+    public class BulkInserter implements BatchedInserts.Target {
+        private final String formHash;
+        private final String[] columns;
+        private final String path;
+        private final SQLiteStatement insert;
+        private final BatchedInserts batches;
+
+
+        BulkInserter(String formHash, String[] columns, String path) {
+            this.formHash = formHash;
+            this.columns = columns;
+            this.path = path;
+            insert = compileInsert(formHash, columns);
+            batches = new BatchedInserts(this, ROWS_PER_TRANSACTION);
+        }
+
+
+        /**
+         * Columns the row does not have are left null; values beyond the header are dropped.
+         */
+        public void addRow(String[] row) {
+            batches.addRow(row);
+        }
+
+
+        /**
+         * Records the csv in the itemsets table and builds the indexes in the same transaction as
+         * the last rows, so the table is only found by its hash once every row is in.
+         */
+        public void finish() {
+            batches.finish();
+        }
+
+
+        /**
+         * Gives up on the import and drops the table, so it is read again next time.
+         */
+        public void abort() {
+            batches.abort();
+            dropTable(formHash);
+        }
+
+
+        @Override
+        public void beginTransaction() {
+            mDb.beginTransaction();
+        }
+
+
+        @Override
+        public void setTransactionSuccessful() {
+            mDb.setTransactionSuccessful();
+        }
+
+
+        @Override
+        public void endTransaction() {
+            mDb.endTransaction();
+        }
+
+
+        @Override
+        public void insert(String[] row) {
+            bindRow(insert, row, columns.length);
+            insert.executeInsert();
+        }
+
+
+        @Override
+        public void finishRows() {
+            ContentValues cv = new ContentValues();
+            cv.put(KEY_ITEMSET_HASH, formHash);
+            cv.put(KEY_PATH, path);
+            mDb.insert(ITEMSET_TABLE, null, cv);
+            createIndexes(formHash, columns);
+        }
+
+
+        @Override
+        public void close() {
+            insert.close();
+        }
+    }
+
+
+    /**
+     * ItemsetWidget always selects on list_name, plus whatever columns the choice filter names.
+     * Any column that is not the choice's name or a label could be in a filter, so each gets an
+     * index together with list_name. Those also serve lookups on list_name alone, which only
+     * gets an index of its own if there are no such columns.
+     */
+    private void createIndexes(String formHash, String[] columns) {
+        String table = DATABASE_TABLE + formHash;
+        String indexPrefix = getIndexPrefix(formHash);
+        boolean hasListName = false;
+        for (String column : columns) {
+            if (KEY_LIST_NAME.equals(column)) {
+                hasListName = true;
+            }
+        }
+        if (!hasListName) {
+            return;
+        }
+
+        int indexes = 0;
+        for (int j = 0; j < columns.length; j++) {
+            String column = columns[j];
+            if (KEY_LIST_NAME.equals(column) || KEY_NAME.equals(column)
+                    || column.startsWith(KEY_LABEL)) {
+                continue;
+            }
+            mDb.execSQL("create index if not exists " + indexPrefix + j + " on " + table
+                    + " (\"" + KEY_LIST_NAME + "\", \"" + column + "\")");
+            indexes++;
+        }
+        if (indexes == 0) {
+            mDb.execSQL("create index if not exists " + indexPrefix + KEY_LIST_NAME + " on "
+                    + table + " (\"" + KEY_LIST_NAME + "\")");
+        }
+    }
+
+
+    /**
+     * The indexes are named after the itemsets row rather than the table, since an
+     * {@link Updater} renames the table when the csv changes and sqlite keeps the index names.
+     */
+    private String getIndexPrefix(String formHash) {
+        String[] projection = {
+            KEY_ID
+        };
+        String[] selectionArgs = {
+            formHash
+        };
+        Cursor c = mDb.query(ITEMSET_TABLE, projection, KEY_ITEMSET_HASH + "=?", selectionArgs,
+                null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                return INDEX_PREFIX + c.getLong(0) + "_";
+            }
+            return DATABASE_TABLE + formHash + "_";
+        } finally {
+            c.close();
+        }
+    }
+
+
+    private SQLiteStatement compileInsert(String formHash, String[] columns) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("insert into " + DATABASE_TABLE + formHash + " (");
+        for (int j = 0; j < columns.length; j++) {
+            sb.append(j == 0 ? "" : ", ").append("\"" + columns[j] + "\"");
+        }
+        sb.append(") values (");
+        for (int j = 0; j < columns.length; j++) {
+            sb.append(j == 0 ? "?" : ", ?");
+        }
+        sb.append(")");
+        return mDb.compileStatement(sb.toString());
+    }
+
+
+    /**
+     * Binds the row to the first columnCount parameters. Columns the row does not have are left
+     * null; values beyond them are dropped.
+     */
+    private static void bindRow(SQLiteStatement statement, String[] row, int columnCount) {
+        for (int i = 0; i < columnCount; i++) {
+            if (i < row.length && row[i] != null) {
+                statement.bindString(i + 1, row[i]);
+            } else {
+                statement.bindNull(i + 1);
+            }
+        }
+    }
+
+
+    /**
+     * @return the columns of the table made by {@link #createTable}, as they were in the csv
+     */
+    public String[] getColumns(String formHash) {
+        Cursor c = mDb.query(DATABASE_TABLE + formHash, null, null, null, null, null, null, "0");
+        try {
+            List<String> columns = new ArrayList<String>(Arrays.asList(c.getColumnNames()));
+            columns.remove(KEY_ID);
+            return columns.toArray(new String[columns.size()]);
+        } finally {
+            c.close();
+        }
+    }
+
+
+    /**
+     * Starts applying a changed csv to the table it was last read into, as just the rows that
+     * were added, changed or removed, all in one transaction. Rows are matched on every column
+     * but their labels, so a changed row is one whose labels changed. ItemsetWidget lists the
+     * choices in table order, so rows can only be added after the last row that is kept.
+     *
+     * @param columns the columns of the changed csv, which must be those of the table
+     * @return null if the table has two rows with the same key and has to be read again
+     */
+    public Updater startUpdate(String formHash, String[] columns) {
+        int keyCount = 0;
+        for (String column : columns) {
+            if (!column.startsWith(KEY_LABEL)) {
+                keyCount++;
+            }
+        }
+        int[] keyColumns = new int[keyCount];
+        keyCount = 0;
+        for (int j = 0; j < columns.length; j++) {
+            if (!columns[j].startsWith(KEY_LABEL)) {
+                keyColumns[keyCount++] = j;
+            }
+        }
+        RowDiff diff = new RowDiff(keyColumns, RowDiff.ORDER_BY_ROW_ID);
+
+        String[] projection = new String[columns.length + 1];
+        projection[0] = KEY_ID;
+        for (int j = 0; j < columns.length; j++) {
+            projection[j + 1] = "\"" + columns[j] + "\"";
+        }
+        Cursor c = mDb.query(DATABASE_TABLE + formHash, projection, null, null, null, null, null);
+        try {
+            String[] values = new String[columns.length];
+            while (c.moveToNext()) {
+                for (int j = 0; j < columns.length; j++) {
+                    values[j] = c.isNull(j + 1) ? null : c.getString(j + 1);
+                }
+                if (!diff.addTableRow(c.getLong(0), values, 0)) {
+                    return null;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return new Updater(formHash, columns, diff);
+    }
+
+
+    public class Updater implements RowDiff.Target {
+        private final String formHash;
+        private final String[] columns;
+        private final RowDiff diff;
+        private final SQLiteStatement insert;
+        private final SQLiteStatement update;
+        private final SQLiteStatement delete;
+        private long position;
+        private boolean ended;
+
+
+        Updater(String formHash, String[] columns, RowDiff diff) {
+            this.formHash = formHash;
+            this.columns = columns;
+            this.diff = diff;
+
+            String table = DATABASE_TABLE + formHash;
+            StringBuilder sb = new StringBuilder();
+            sb.append("update " + table + " set ");
+            for (int j = 0; j < columns.length; j++) {
+                sb.append(j == 0 ? "" : ", ").append("\"" + columns[j] + "\" = ?");
+            }
+            sb.append(" where " + KEY_ID + " = ?");
+            insert = compileInsert(formHash, columns);
+            update = mDb.compileStatement(sb.toString());
+            delete = mDb.compileStatement("delete from " + table + " where " + KEY_ID + " = ?");
+            mDb.beginTransaction();
+        }
+
+
+        /**
+         * @return false if the rows cannot be matched up, in which case the update has to be
+         *         aborted and the table read again
+         */
+        public boolean addRow(String[] row) {
+            // one value per column, null where the row is short, as the table has them
+            String[] values = new String[columns.length];
+            System.arraycopy(row, 0, values, 0, Math.min(row.length, columns.length));
+            return diff.addCsvRow(values, position++, this);
+        }
+
+
+        /**
+         * Removes the rows the csv no longer has, renames the table after the csv's new hash and
+         * commits the lot.
+         */
+        public void finish(String newHash) {
+            try {
+                diff.deleteUnmatched(this);
+                if (!newHash.equals(formHash)) {
+                    mDb.execSQL("ALTER TABLE " + DATABASE_TABLE + formHash + " RENAME TO "
+                            + DATABASE_TABLE + newHash);
+                    ContentValues cv = new ContentValues();
+                    cv.put(KEY_ITEMSET_HASH, newHash);
+                    String[] whereArgs = {
+                        formHash
+                    };
+                    mDb.update(ITEMSET_TABLE, cv, KEY_ITEMSET_HASH + "=?", whereArgs);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                end();
+            }
+        }
+
+
+        /**
+         * Rolls back whatever was applied, leaving the table as it was.
+         */
+        public void abort() {
+            end();
+        }
+
+
+        public String getSummary() {
+            return diff.toString();
+        }
+
+
+        @Override
+        public void insert(String[] row, long position) {
+            bindRow(insert, row, columns.length);
+            insert.executeInsert();
+        }
+
+
+        @Override
+        public void update(long rowId, String[] row, long position) {
+            bindRow(update, row, columns.length);
+            update.bindLong(columns.length + 1, rowId);
+            update.execute();
+        }
+
+
+        @Override
+        public void delete(long rowId) {
+            delete.bindLong(1, rowId);
+            delete.execute();
+        }
+
+
+        private void end() {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            try {
+                mDb.endTransaction();
+            } finally {
+                insert.close();
+                update.close();
+                delete.close();
+            }
+        }
+    }
+
     public boolean tableExists(String tableName) {
         // select name from sqlite_master where type = 'table'
         String selection = "type=? and name=?";
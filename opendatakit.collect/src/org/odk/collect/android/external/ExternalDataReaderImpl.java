@@ -48,7 +48,19 @@ public class ExternalDataReaderImpl implements ExternalDataReader {
             if (dataSetFile.exists()) {
                 File dbFile = new File(dataSetFile.getParentFile().getAbsolutePath(), dataSetName + ".db");
                 if (dbFile.exists()) {
-                    // this means the someone updated the csv file, so we need to reload it
+                    // this means the someone updated the csv file, so first try to apply just what changed
+                    ExternalSQLiteOpenHelper externalSQLiteOpenHelper = new ExternalSQLiteOpenHelper(dbFile);
+                    if (externalSQLiteOpenHelper.updateFromCSV(dataSetFile, formLoaderTask)) {
+                        if (formLoaderTask.isCancelled()) {
+                            // the changes were rolled back, so the previous data is still there and the csv will be read next time.
+                            Log.w(ExternalDataUtil.LOGGER_NAME, "The update was cancelled and rolled back.");
+                            return;
+                        }
+                        archive(dataSetFile);
+                        continue;
+                    }
+
+                    // otherwise we need to reload it
                     boolean deleted = dbFile.delete();
                     if (!deleted) {
                         Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " has changed but we could not delete the previous DB at " + dbFile.getAbsolutePath());
@@ -81,17 +93,21 @@ public class ExternalDataReaderImpl implements ExternalDataReader {
                     return;
 
                 } else {
-                    // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be loaded again
-                    File importedFile = new File(dataSetFile.getParentFile(), dataSetFile.getName() + ".imported");
-                    boolean renamed = dataSetFile.renameTo(importedFile);
-                    if (!renamed) {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " could not be renamed to be archived. It will be re-imported again! :(");
-                    } else {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " was renamed to " + importedFile.getName());
-                    }
+                    archive(dataSetFile);
                 }
             }
         }
     }
 
+    private void archive(File dataSetFile) {
+        // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be loaded again
+        File importedFile = new File(dataSetFile.getParentFile(), dataSetFile.getName() + ".imported");
+        boolean renamed = dataSetFile.renameTo(importedFile);
+        if (!renamed) {
+            Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " could not be renamed to be archived. It will be re-imported again! :(");
+        } else {
+            Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " was renamed to " + importedFile.getName());
+        }
+    }
+
 }
@@ -19,6 +19,7 @@
 package org.odk.collect.android.external;
 
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 import au.com.bytecode.opencsv.CSVReader;
@@ -27,12 +28,14 @@ import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.ODKSQLiteOpenHelper;
 import org.odk.collect.android.exception.ExternalDataException;
 import org.odk.collect.android.tasks.FormLoaderTask;
+import org.odk.collect.android.utilities.RowDiff;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -188,11 +191,7 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
                     }
                     String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName, columnNamesCache);
                     if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
-                        try {
-                            values.put(safeColumnName, Double.parseDouble(columnValue));
-                        } catch (NumberFormatException e) {
-                            throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_sortBy_numeric_error, columnValue));
-                        }
+                        values.put(safeColumnName, toSortValue(columnValue));
                     } else {
                         values.put(safeColumnName, columnValue);
                     }
@@ -232,6 +231,206 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
         }
     }
 
+    /**
+     * Applies just the rows of a changed dataSetFile that differ from what the database holds,
+     * in one transaction. Rows are matched on their name column, or on their first column if
+     * there is no name column. Without a sort column of its own the data set is ordered by its
+     * rows' positions in the file, so a row that moved counts as changed.
+     *
+     * @return false if the database could not be brought up to date this way and has to be
+     *         imported again; true if it was, or if the update was cancelled and rolled back
+     */
+    public boolean updateFromCSV(File dataSetFile, FormLoaderTask formLoaderTask) {
+        this.dataSetFile = dataSetFile;
+        this.formLoaderTask = formLoaderTask;
+
+        SQLiteDatabase writableDatabase = null;
+        try {
+            writableDatabase = getWritableDatabase();
+            return onUpdateNamed(writableDatabase, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+        } catch (Exception e) {
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Could not apply the changes in " + dataSetFile + ", so it will be imported again.", e);
+            return false;
+        } finally {
+            if (writableDatabase != null) {
+                writableDatabase.close();
+            }
+        }
+    }
+
+    private boolean onUpdateNamed(final SQLiteDatabase db, final String tableName) throws Exception {
+        Log.w(ExternalDataUtil.LOGGER_NAME, "Reading changes from '" + dataSetFile);
+
+        onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message, dataSetFile.getName(), ""));
+
+        CSVReader reader = null;
+        try {
+            reader = new CSVReader(new InputStreamReader(new FileInputStream(dataSetFile), "UTF-8"), DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
+            String[] headerRow = reader.readNext();
+
+            if (!ExternalDataUtil.containsAnyData(headerRow) || ExternalDataUtil.findMatchingColumnsAfterSafeningNames(headerRow) != null) {
+                // let the import report what is wrong with it
+                return false;
+            }
+
+            // the columns the import would create, which must be those the table has
+            Map<String, String> columnNamesCache = new HashMap<String, String>();
+            final List<String> columnNames = new ArrayList<String>();
+            final List<Integer> columnIndexes = new ArrayList<Integer>();
+            for (int i = 0; i < headerRow.length; i++) {
+                String columnName = headerRow[i].trim();
+                if (columnName.length() > 0) {
+                    columnNames.add(ExternalDataUtil.toSafeColumnName(columnName, columnNamesCache));
+                    columnIndexes.add(i);
+                }
+            }
+            final int sortColumn = columnNames.indexOf(ExternalDataUtil.SORT_COLUMN_NAME);
+            final boolean sortColumnAlreadyPresent = sortColumn >= 0;
+            List<String> tableColumns = new ArrayList<String>(columnNames);
+            if (!sortColumnAlreadyPresent) {
+                tableColumns.add(ExternalDataUtil.SORT_COLUMN_NAME);
+            }
+
+            Cursor c = db.query(tableName, null, null, null, null, null, null, "0");
+            try {
+                if (!tableColumns.equals(Arrays.asList(c.getColumnNames()))) {
+                    Log.w(ExternalDataUtil.LOGGER_NAME, "The columns of " + dataSetFile + " have changed.");
+                    return false;
+                }
+            } finally {
+                c.close();
+            }
+
+            int keyColumn = columnNames.indexOf(ExternalDataUtil.toSafeColumnName("name", columnNamesCache));
+            RowDiff diff = new RowDiff(new int[] {Math.max(keyColumn, 0)},
+                    sortColumnAlreadyPresent ? RowDiff.ORDER_BY_VALUES : RowDiff.ORDER_BY_POSITION);
+
+            String[] projection = new String[tableColumns.size() + 1];
+            projection[0] = "rowid";
+            for (int j = 0; j < tableColumns.size(); j++) {
+                projection[j + 1] = tableColumns.get(j);
+            }
+            c = db.query(tableName, projection, null, null, null, null, null);
+            try {
+                String[] values = new String[columnNames.size()];
+                while (c.moveToNext()) {
+                    for (int j = 0; j < values.length; j++) {
+                        values[j] = c.getString(j + 1);
+                    }
+                    if (sortColumnAlreadyPresent) {
+                        // read back the way the csv's value is normalised below
+                        values[sortColumn] = String.valueOf(c.getDouble(sortColumn + 1));
+                    }
+                    long position = sortColumnAlreadyPresent ? 0 : c.getLong(values.length + 1);
+                    if (!diff.addTableRow(c.getLong(0), values, position)) {
+                        Log.w(ExternalDataUtil.LOGGER_NAME, "The rows of " + dataSetFile + " cannot be told apart by their key.");
+                        return false;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+
+            RowDiff.Target target = new RowDiff.Target() {
+                @Override
+                public void insert(String[] row, long position) {
+                    db.insertOrThrow(tableName, null, toContentValues(columnNames, row, sortColumnAlreadyPresent, position));
+                }
+
+                @Override
+                public void update(long rowId, String[] row, long position) {
+                    db.update(tableName, toContentValues(columnNames, row, sortColumnAlreadyPresent, position), "rowid=?", new String[] {String.valueOf(rowId)});
+                }
+
+                @Override
+                public void delete(long rowId) {
+                    db.delete(tableName, "rowid=?", new String[] {String.valueOf(rowId)});
+                }
+            };
+
+            db.beginTransaction();
+            try {
+                String[] row = reader.readNext();
+                int rowCount = 0;
+                while (row != null && !formLoaderTask.isCancelled()) {
+                    // skip empty lines and fill up short ones, as the import does
+                    if (!ExternalDataUtil.containsAnyData(row)) {
+                        row = reader.readNext();
+                        continue;
+                    }
+                    if (row.length < headerRow.length) {
+                        row = ExternalDataUtil.fillUpNullValues(row, headerRow);
+                    }
+
+                    String[] values = new String[columnNames.size()];
+                    for (int j = 0; j < values.length; j++) {
+                        values[j] = row[columnIndexes.get(j)];
+                    }
+                    if (sortColumnAlreadyPresent) {
+                        values[sortColumn] = String.valueOf(toSortValue(values[sortColumn]));
+                    }
+                    if (!diff.addCsvRow(values, rowCount + 1, target)) {
+                        Log.w(ExternalDataUtil.LOGGER_NAME, "The rows of " + dataSetFile + " cannot be told apart by their key.");
+                        return false;
+                    }
+
+                    row = reader.readNext();
+                    rowCount++;
+                    if (rowCount % 100 == 0) {
+                        onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message, dataSetFile.getName(), " (" + rowCount + " records so far)"));
+                    }
+                }
+
+                if (formLoaderTask.isCancelled()) {
+                    Log.w(ExternalDataUtil.LOGGER_NAME, "User canceled reading changes from " + dataSetFile);
+                    onProgress(Collect.getInstance().getString(R.string.ext_import_cancelled_message));
+                    return true;
+                }
+
+                diff.deleteUnmatched(target);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Applied the changes in " + dataSetFile + ": " + diff);
+            onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
+            return true;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private static ContentValues toContentValues(List<String> columnNames, String[] values, boolean sortColumnAlreadyPresent, long position) {
+        ContentValues contentValues = new ContentValues();
+        if (!sortColumnAlreadyPresent) {
+            contentValues.put(ExternalDataUtil.SORT_COLUMN_NAME, position);
+        }
+        for (int j = 0; j < values.length; j++) {
+            String safeColumnName = columnNames.get(j);
+            if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
+                contentValues.put(safeColumnName, toSortValue(values[j]));
+            } else {
+                contentValues.put(safeColumnName, values[j]);
+            }
+        }
+        return contentValues;
+    }
+
+    private static double toSortValue(String columnValue) {
+        try {
+            return Double.parseDouble(columnValue);
+        } catch (NumberFormatException e) {
+            throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_sortBy_numeric_error, columnValue));
+        }
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     }
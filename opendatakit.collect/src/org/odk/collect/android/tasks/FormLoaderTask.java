@@ -15,6 +15,7 @@
 package org.odk.collect.android.tasks;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -23,14 +24,11 @@ import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.FormIndex;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.instance.InstanceInitializationFactory;
-import org.javarosa.core.model.instance.TreeElement;
-import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.instance.utils.DefaultAnswerResolver;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.core.reference.RootTranslator;
 import org.javarosa.core.services.PrototypeManager;
 import org.javarosa.core.util.externalizable.DeserializationException;
-import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryModel;
 import org.javarosa.model.xform.XFormsModule;
@@ -45,15 +43,20 @@ import org.odk.collect.android.external.*;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.logic.FileReferenceFactory;
 import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.StreamingInstanceLoader;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormDefCache;
+import org.odk.collect.android.utilities.FormDefSnapshot;
 import org.odk.collect.android.external.handler.ExternalDataHandlerPull;
 
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.os.AsyncTask;
 import android.util.Log;
 import au.com.bytecode.opencsv.CSVReader;
 import org.odk.collect.android.utilities.ZipUtils;
+import org.xmlpull.v1.XmlPullParserException;
 
 /**
  * Background task for loading a form.
@@ -95,6 +98,9 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 			"org.javarosa.core.model.Action", // CoreModelModule
 			"org.javarosa.core.model.actions.SetValueAction" // CoreModelModule
     };
+
+    private static final long SNAPSHOT_SCHEMA_TAG = FormDefSnapshot.getSchemaTag(SERIALIABLE_CLASSES);
+
     private static final String ITEMSETS_CSV = "itemsets.csv";
 
     private static boolean isJavaRosaInitialized = false;
@@ -176,8 +182,9 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         String formPath = path[0];
 
         File formXml = new File(formPath);
-        String formHash = FileUtils.getMd5Hash(formXml);
-        File formBin = new File(Collect.CACHE_PATH + File.separator + formHash + ".formdef");
+        FormDefCache formDefCache = FormDefCache.getInstance();
+        String formHash = formDefCache.getHash(formXml);
+        File formBin = formDefCache.getFormDefFile(formHash);
 
         initializeJavaRosa();
 
@@ -196,6 +203,8 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 Log.w(t,
                     "Deserialization FAILED!  Deleting cache file: " + formBin.getAbsolutePath());
                 formBin.delete();
+            } else {
+                formDefCache.touch(formBin);
             }
         }
         if (fd == null) {
@@ -322,6 +331,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         if (exists(csv)) {
             csvmd5 = FileUtils.getMd5Hash(csv);
             boolean readFile = false;
+            String updateFrom = null;
             ItemsetDbAdapter ida = new ItemsetDbAdapter();
             ida.open();
             // get the database entry (if exists) for this itemsets.csv, based
@@ -334,10 +344,8 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                     if (oldmd5.equals(csvmd5)) {
                         // they're equal, do nothing
                     } else {
-                        // the csv has been updated, delete the old entries
-                        ida.dropTable(oldmd5);
-                        // and read the new
-                        readFile = true;
+                        // the csv has been updated, apply just what changed
+                        updateFrom = oldmd5;
                     }
                 } else {
                     // new csv, add it
@@ -346,6 +354,10 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 c.close();
             }
             ida.close();
+            if (updateFrom != null && !updateCSV(csv, updateFrom, csvmd5)) {
+                // the old entries are gone, read the new
+                readFile = true;
+            }
             if (readFile) {
                 readCSV(csv, csvmd5);
             }
@@ -455,46 +467,45 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         }
     }
 
+    /**
+     * Restores the saved instance into the form as it is read, see {@link StreamingInstanceLoader}.
+     */
     public boolean importData(File instanceFile, FormEntryController fec) {
         publishProgress(Collect.getInstance().getString(R.string.survey_loading_reading_data_message));
 
-        // convert files into a byte array
-        byte[] fileBytes = readFileToByteArray(instanceFile);
-
-        // get the root of the saved and template instances
-        TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
-        TreeElement templateRoot = fec.getModel().getForm().getInstance().getRoot().deepCopy(true);
+        boolean loaded;
+        InputStream savedInstance = null;
+        // Here we set the Collect's implementation of the IAnswerResolver.
+        // We set it back to the default after select choices have been populated.
+        XFormParser.setAnswerResolver(new ExternalAnswerResolver());
+        try {
+            savedInstance = openFile(instanceFile);
+            loaded = new StreamingInstanceLoader(fec.getModel().getForm()).load(savedInstance);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read saved instance " + instanceFile.getName(), e);
+        } catch (XmlPullParserException e) {
+            throw new RuntimeException("Unable to parse saved instance " + instanceFile.getName(), e);
+        } finally {
+            XFormParser.setAnswerResolver(new DefaultAnswerResolver());
+            IOUtils.closeQuietly(savedInstance);
+        }
 
         // weak check for matching forms
-        if (!savedRoot.getName().equals(templateRoot.getName()) || savedRoot.getMult() != 0) {
+        if (!loaded) {
             Log.e(t, "Saved form instance does not match template form definition");
             return false;
-        } else {
-            // populate the data model
-            TreeReference tr = TreeReference.rootRef();
-            tr.add(templateRoot.getName(), TreeReference.INDEX_UNBOUND);
-
-            // Here we set the Collect's implementation of the IAnswerResolver.
-            // We set it back to the default after select choices have been populated.
-            XFormParser.setAnswerResolver(new ExternalAnswerResolver());
-            templateRoot.populate(savedRoot, fec.getModel().getForm());
-            XFormParser.setAnswerResolver(new DefaultAnswerResolver());
-
-            // populated model to current form
-            fec.getModel().getForm().getInstance().setRoot(templateRoot);
-
-            // fix any language issues
-            // : http://bitbucket.org/javarosa/main/issue/5/itext-n-appearing-in-restored-instances
-            if (fec.getModel().getLanguages() != null) {
-                fec.getModel()
-                        .getForm()
-                        .localeChanged(fec.getModel().getLanguage(),
-                            fec.getModel().getForm().getLocalizer());
-            }
-
-            return true;
+        }
 
+        // fix any language issues
+        // : http://bitbucket.org/javarosa/main/issue/5/itext-n-appearing-in-restored-instances
+        if (fec.getModel().getLanguages() != null) {
+            fec.getModel()
+                    .getForm()
+                    .localeChanged(fec.getModel().getLanguage(),
+                        fec.getModel().getForm().getLocalizer());
         }
+
+        return true;
     }
 
     /**
@@ -506,18 +517,10 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     public FormDef deserializeFormDef(File formDef) {
 
         // TODO: any way to remove reliance on jrsp?
-        FileInputStream fis = null;
         FormDef fd = null;
         try {
-            // create new form def
-            fd = new FormDef();
-            fis = new FileInputStream(formDef);
-            DataInputStream dis = new DataInputStream(fis);
-
-            // read serialized formdef into new formdef
-            fd.readExternal(dis, ExtUtil.defaultPrototypes());
-            dis.close();
-
+            // read the snapshot into a new formdef, or null if it is stale
+            fd = FormDefSnapshot.read(formDef, SNAPSHOT_SCHEMA_TAG);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             fd = null;
@@ -542,21 +545,16 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
      * @param filepath path to the form file
      */
     public void serializeFormDef(FormDef fd, String filepath) {
-        // calculate unique md5 identifier
-        String hash = FileUtils.getMd5Hash(new File(filepath));
-        File formDef = new File(Collect.CACHE_PATH + File.separator + hash + ".formdef");
+        // unique md5 identifier, normally already in the index from loading the form
+        FormDefCache formDefCache = FormDefCache.getInstance();
+        String hash = formDefCache.getHash(new File(filepath));
+        File formDef = formDefCache.getFormDefFile(hash);
 
         // formdef does not exist, create one.
         if (!exists(formDef)) {
-            FileOutputStream fos;
             try {
-                fos = new FileOutputStream(formDef);
-                DataOutputStream dos = new DataOutputStream(fos);
-                fd.writeExternal(dos);
-                dos.flush();
-                dos.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+                FormDefSnapshot.write(fd, formDef, SNAPSHOT_SCHEMA_TAG);
+                formDefCache.trim(formDef);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -638,52 +636,127 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 		this.intent = intent;
 	}
 
+    /**
+     * Applies the rows of itemsets.csv that changed since it was last read to the table it was
+     * read into, and renames the table after the new hash.
+     *
+     * @return false if the changes could not be worked out, in which case the old table has
+     *         been dropped and the csv has to be read in full
+     */
+    private boolean updateCSV(File csv, String oldHash, String newHash) {
+
+        CSVReader reader = null;
+        ItemsetDbAdapter ida = new ItemsetDbAdapter();
+        ida.open();
+        ItemsetDbAdapter.Updater updater = null;
+        long startMillis = System.currentTimeMillis();
+        boolean updated = false;
+
+        try {
+            reader = new CSVReader(new BufferedReader(new InputStreamReader(
+                    new FileInputStream(csv), "UTF-8")));
+
+            // the rows can only be matched up if the columns are the same
+            String[] columnHeaders = reader.readNext();
+            if (columnHeaders != null
+                    && Arrays.equals(columnHeaders, ida.getColumns(oldHash))) {
+                updater = ida.startUpdate(oldHash, columnHeaders);
+            }
+            if (updater != null) {
+                boolean matched = true;
+                String[] nextLine;
+                while (matched && (nextLine = reader.readNext()) != null) {
+                    matched = updater.addRow(nextLine);
+                }
+                if (matched) {
+                    updater.finish(newHash);
+                    updated = true;
+                    Log.i(t, "Updated itemsets with " + updater.getSummary() + " in "
+                            + (System.currentTimeMillis() - startMillis) + " ms");
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (SQLException e) {
+            Log.e(t, "Unable to update itemsets: " + e.getMessage());
+        } finally {
+            if (updater != null) {
+                // rolls back whatever was applied if it did not finish
+                updater.abort();
+            }
+            if (!updated) {
+                Log.i(t, "Reading all of " + csv.getName() + " again");
+                ida.dropTable(oldHash);
+            }
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            ida.close();
+        }
+        return updated;
+    }
+
 	private void readCSV(File csv, String formHash) {
 
-        CSVReader reader;
+        CSVReader reader = null;
         ItemsetDbAdapter ida = new ItemsetDbAdapter();
         ida.open();
+        ItemsetDbAdapter.BulkInserter inserter = null;
+        long startMillis = System.currentTimeMillis();
+        int rows = 0;
 
         try {
-            reader = new CSVReader(new FileReader(csv));
+            // itemsets.csv is UTF-8 whatever the platform charset is
+            reader = new CSVReader(new BufferedReader(new InputStreamReader(
+                    new FileInputStream(csv), "UTF-8")));
+
+            // first line of csv is column headers
+            String[] columnHeaders = reader.readNext();
+            if (columnHeaders == null) {
+                return;
+            }
+            ida.createTable(formHash, columnHeaders);
+            inserter = ida.startBulkInsert(formHash, columnHeaders, csv.getAbsolutePath());
 
+            // add the rest of the lines to the specified database
             String[] nextLine;
-            String[] columnHeaders = null;
-            int lineNumber = 0;
             while ((nextLine = reader.readNext()) != null) {
-                lineNumber++;
-                if (lineNumber == 1) {
-                    // first line of csv is column headers
-                    columnHeaders = nextLine;
-                    ida.createTable(formHash, columnHeaders,
-                            csv.getAbsolutePath());
-                    continue;
-                }
-                // add the rest of the lines to the specified database
-                // nextLine[] is an array of values from the line
-                // System.out.println(nextLine[4] + "etc...");
-                if (lineNumber == 2) {
-                    // start a transaction for the inserts
-                    ida.beginTransaction();
-                }
-                ida.addRow(formHash, columnHeaders, nextLine);
-
+                inserter.addRow(nextLine);
+                rows++;
             }
+            inserter.finish();
+            inserter = null;
+            Log.i(t, "Imported " + rows + " itemsets in "
+                    + (System.currentTimeMillis() - startMillis) + " ms");
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            ida.commit();
+            if (inserter != null) {
+                // only part of the file went in; drop it so it is read again next time
+                inserter.abort();
+            }
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
             ida.close();
         }
     }
 	
 	/**
-	 * Returns the contents of the given File as a byte array.
+	 * Opens the given File for reading.
 	 * Serves as an override point for subclasses with custom
 	 * file storage mechanisms.
 	 */
-	protected byte[] readFileToByteArray(File file) {
-		return FileUtils.getFileAsBytes(file);
+	protected InputStream openFile(File file) throws IOException {
+		return new FileInputStream(file);
 	}
 	
 	/**
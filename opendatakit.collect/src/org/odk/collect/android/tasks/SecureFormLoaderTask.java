@@ -2,7 +2,8 @@ package org.odk.collect.android.tasks;
 
 import info.guardianproject.iocipher.File;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
@@ -15,7 +16,6 @@ import org.odk.collect.android.external.ExternalAnswerResolver;
 import org.odk.collect.android.io.SecureFileStorageManager;
 import org.odk.collect.android.utilities.FileUtils;
 
-import android.util.Log;
 
 /**
  * A drop-in replacement for FormLoaderTask that interfaces with 
@@ -54,15 +54,8 @@ public class SecureFormLoaderTask extends FormLoaderTask {
 	}
 	
 	@Override
-	protected byte[] readFileToByteArray(java.io.File file) {
-		try {
-			return mStorage.readFile(file.getAbsolutePath());
-		} catch (FileNotFoundException e) {
-			Log.e(TAG, "Unable to open file " + file.getAbsolutePath());
-			// TODO: What to do here?
-			e.printStackTrace();
-		}
-		return null;
+	protected InputStream openFile(java.io.File file) throws IOException {
+		return mStorage.openFile(file.getAbsolutePath());
 	}
 
 
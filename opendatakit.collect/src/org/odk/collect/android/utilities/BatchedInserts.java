@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+/**
+ * Splits a long run of row inserts into transactions of a fixed number of rows, so sqlite neither
+ * journals every row on its own nor holds the whole load in one transaction.
+ * <p>
+ * Whatever the {@link Target} does in {@link Target#finishRows} goes into the same transaction as
+ * the last rows, so it is only committed once every row is in. If that fails, or the load is
+ * aborted, the open transaction is ended without being marked successful and rolls back.
+ */
+public class BatchedInserts {
+
+    public interface Target {
+        void beginTransaction();
+
+        void setTransactionSuccessful();
+
+        void endTransaction();
+
+        void insert(String[] row);
+
+        /**
+         * Called inside the last transaction, after the last row.
+         */
+        void finishRows();
+
+        /**
+         * Called once, after the last transaction has ended.
+         */
+        void close();
+    }
+
+    private final Target target;
+    private final int rowsPerTransaction;
+
+    private int rowsInTransaction;
+    private boolean ended;
+
+
+    public BatchedInserts(Target target, int rowsPerTransaction) {
+        this.target = target;
+        this.rowsPerTransaction = rowsPerTransaction;
+        target.beginTransaction();
+    }
+
+
+    public void addRow(String[] row) {
+        target.insert(row);
+
+        if (++rowsInTransaction == rowsPerTransaction) {
+            target.setTransactionSuccessful();
+            target.endTransaction();
+            target.beginTransaction();
+            rowsInTransaction = 0;
+        }
+    }
+
+
+    public void finish() {
+        try {
+            target.finishRows();
+            target.setTransactionSuccessful();
+        } finally {
+            end();
+        }
+    }
+
+
+    public void abort() {
+        end();
+    }
+
+
+    private void end() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        try {
+            target.endTransaction();
+        } finally {
+            target.close();
+        }
+    }
+}
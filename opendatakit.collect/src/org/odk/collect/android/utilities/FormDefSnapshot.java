@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the <code>.formdef</code> snapshot of a {@link FormDef}, including its main
+ * {@link org.javarosa.core.model.instance.FormInstance}.
+ * <p>
+ * A snapshot is a fixed header followed by the FormDef's own externalized form:
+ * <pre>
+ *   int  MAGIC
+ *   int  FORMAT_VERSION
+ *   long schema tag, see {@link #getSchemaTag(String[])}
+ *   int  payload length
+ *   long CRC32 of the payload
+ *   ...  payload
+ * </pre>
+ * A snapshot with a different magic, version or schema tag, or whose payload is truncated or
+ * corrupt, is rejected before JavaRosa sees any of it, so the caller can drop it and rebuild it
+ * from the XForm. This also rejects .formdef files written before the header existed.
+ * <p>
+ * The file is memory mapped and read through a buffer-backed stream, so each of the many small
+ * reads ExtUtil makes is a memory access instead of a read() call on the file.
+ */
+public class FormDefSnapshot {
+    private final static String t = "FormDefSnapshot";
+
+    public static final int MAGIC = 0x4D464453; // "MFDS"
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8;
+
+
+    /**
+     * @param serializableClasses the prototype classes registered with JavaRosa, in order
+     * @return a tag that changes whenever the snapshot format or the registered classes do
+     */
+    public static long getSchemaTag(String[] serializableClasses) {
+        CRC32 crc = new CRC32();
+        crc.update(FORMAT_VERSION);
+        try {
+            for (String className : serializableClasses) {
+                byte[] name = className.getBytes("UTF-8");
+                crc.update(name, 0, name.length);
+                crc.update(0);
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 encoding not supported");
+        }
+        return crc.getValue();
+    }
+
+
+    /**
+     * Writes the snapshot to a temporary file next to snapshotFile and renames it into place,
+     * so a form being opened concurrently never sees half a snapshot.
+     */
+    public static void write(FormDef fd, File snapshotFile, long schemaTag) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        fd.writeExternal(payloadOut);
+        payloadOut.flush();
+        byte[] payloadBytes = payload.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes, 0, payloadBytes.length);
+
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(schemaTag);
+            out.writeInt(payloadBytes.length);
+            out.writeLong(crc.getValue());
+            out.write(payloadBytes);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(snapshotFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename snapshot to " + snapshotFile.getAbsolutePath());
+        }
+    }
+
+
+    /**
+     * @return the FormDef in the snapshot, or null if the snapshot is stale or damaged and
+     *         should be deleted
+     */
+    public static FormDef read(File snapshotFile, long schemaTag) throws IOException,
+            DeserializationException {
+        FileInputStream fis = new FileInputStream(snapshotFile);
+        try {
+            FileChannel channel = fis.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                Log.w(t, "Snapshot too short: " + snapshotFile.getName());
+                return null;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            int magic = mapped.getInt();
+            int version = mapped.getInt();
+            long tag = mapped.getLong();
+            int payloadLength = mapped.getInt();
+            long expectedCrc = mapped.getLong();
+            if (magic != MAGIC || version != FORMAT_VERSION || tag != schemaTag) {
+                Log.i(t, "Rejecting stale snapshot " + snapshotFile.getName() + " version " + version);
+                return null;
+            }
+            if (payloadLength != mapped.remaining()) {
+                Log.w(t, "Snapshot payload truncated: " + snapshotFile.getName());
+                return null;
+            }
+
+            ByteBuffer payload = mapped.slice();
+            if (getCrc(payload.duplicate()) != expectedCrc) {
+                Log.w(t, "Snapshot payload corrupt: " + snapshotFile.getName());
+                return null;
+            }
+
+            FormDef fd = new FormDef();
+            fd.readExternal(new DataInputStream(new ByteBufferInputStream(payload)),
+                ExtUtil.defaultPrototypes());
+            return fd;
+        } finally {
+            fis.close();
+        }
+    }
+
+
+    private static long getCrc(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        while (buffer.hasRemaining()) {
+            int count = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+        }
+        return crc.getValue();
+    }
+
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Works out which rows of a changed CSV differ from the rows a table was loaded with, so the
+ * change can be applied as a few inserts, updates and deletes instead of reloading the table.
+ * <p>
+ * Rows are matched on their key columns. The table's rows are added first and each is kept only
+ * as its key, its row id and a 64-bit hash of its values. The CSV's rows are then streamed
+ * through and each one that is new or changed is handed to a {@link Target}; whatever table rows
+ * were not matched are deleted at the end.
+ * <p>
+ * A key that appears twice on either side means the rows cannot be matched up, and neither can
+ * they if the table's order cannot be kept; either way the caller should reload the whole table.
+ */
+public class RowDiff {
+
+    /**
+     * The order of the rows is in their values, or does not matter.
+     */
+    public static final int ORDER_BY_VALUES = 0;
+
+    /**
+     * The order of the rows is in a position column the caller fills in, so a row that moved
+     * is changed.
+     */
+    public static final int ORDER_BY_POSITION = 1;
+
+    /**
+     * The order of the rows is the order of their row ids. Rows can be changed or removed
+     * anywhere, but only added after the last row that is kept.
+     */
+    public static final int ORDER_BY_ROW_ID = 2;
+
+    public interface Target {
+        void insert(String[] row, long position);
+
+        void update(long rowId, String[] row, long position);
+
+        void delete(long rowId);
+    }
+
+    // marks a table row the CSV has had, so a second CSV row with its key can be spotted
+    private static final long[] MATCHED = new long[0];
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final char NULL_VALUE = '\uffff';
+
+    private final int[] keyColumns;
+    private final int order;
+    private final Map<String, long[]> tableRows;
+
+    private long lastRowId = Long.MIN_VALUE;
+    private int inserted;
+    private int updated;
+    private int deleted;
+    private int unchanged;
+
+
+    public RowDiff(int[] keyColumns, int order) {
+        this.keyColumns = keyColumns;
+        this.order = order;
+        tableRows = new HashMap<String, long[]>();
+    }
+
+
+    /**
+     * @param values the row's values, one for each column in the CSV's order
+     * @param position the row's position, if the order is {@link #ORDER_BY_POSITION}
+     * @return false if the table already had a row with this key
+     */
+    public boolean addTableRow(long rowId, String[] values, long position) {
+        long[] row = new long[] {
+                rowId, getHash(values, position)
+        };
+        return tableRows.put(getKey(values), row) == null;
+    }
+
+
+    /**
+     * Hands the CSV row to target if it is not in the table as it is.
+     *
+     * @param values the row's values, one for each column
+     * @return false if the rows cannot be matched up after all, in which case target may
+     *         already have been given some of them and what it did should be rolled back
+     */
+    public boolean addCsvRow(String[] values, long position, Target target) {
+        long[] tableRow = tableRows.put(getKey(values), MATCHED);
+        if (tableRow == MATCHED) {
+            return false;
+        }
+
+        if (tableRow == null) {
+            target.insert(values, position);
+            inserted++;
+            return true;
+        }
+
+        if (order == ORDER_BY_ROW_ID) {
+            // an added row goes on the end, so nothing kept may come after one
+            if (inserted > 0 || tableRow[0] < lastRowId) {
+                return false;
+            }
+            lastRowId = tableRow[0];
+        }
+        if (tableRow[1] != getHash(values, position)) {
+            target.update(tableRow[0], values, position);
+            updated++;
+        } else {
+            unchanged++;
+        }
+        return true;
+    }
+
+
+    /**
+     * Deletes the table rows no CSV row matched. Called once every CSV row has been added.
+     */
+    public void deleteUnmatched(Target target) {
+        for (long[] tableRow : tableRows.values()) {
+            if (tableRow != MATCHED) {
+                target.delete(tableRow[0]);
+                deleted++;
+            }
+        }
+    }
+
+
+    public int getChangeCount() {
+        return inserted + updated + deleted;
+    }
+
+
+    @Override
+    public String toString() {
+        return inserted + " inserted, " + updated + " updated, " + deleted + " deleted, "
+                + unchanged + " unchanged";
+    }
+
+
+    private String getKey(String[] values) {
+        StringBuilder key = new StringBuilder();
+        for (int j = 0; j < keyColumns.length; j++) {
+            if (j > 0) {
+                key.append('\0');
+            }
+            String value = values[keyColumns[j]];
+            if (value == null) {
+                key.append(NULL_VALUE);
+            } else {
+                key.append(value);
+            }
+        }
+        return key.toString();
+    }
+
+
+    /**
+     * FNV-1a over every value, with a null told apart from an empty value.
+     */
+    private long getHash(String[] values, long position) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < values.length; i++) {
+            String value = values[i];
+            if (value == null) {
+                hash = (hash ^ NULL_VALUE) * FNV_PRIME;
+            } else {
+                for (int k = 0; k < value.length(); k++) {
+                    hash = (hash ^ value.charAt(k)) * FNV_PRIME;
+                }
+            }
+            // a zero char between values, so "ab","c" and "a","bc" differ
+            hash *= FNV_PRIME;
+        }
+        if (order == ORDER_BY_POSITION) {
+            hash = (hash ^ position) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
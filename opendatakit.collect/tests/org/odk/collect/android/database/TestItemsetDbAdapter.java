@@ -0,0 +1,25 @@
+package org.odk.collect.android.database;
+
+import junit.framework.TestCase;
+
+public class TestItemsetDbAdapter extends TestCase {
+
+    public void testTableIsDroppedBeforeItIsCreated() {
+        String[] statements = ItemsetDbAdapter.getCreateTableStatements("abc", new String[] {
+                "list_name", "name", "label::English"
+        });
+        assertEquals(2, statements.length);
+        assertEquals("DROP TABLE IF EXISTS itemset_abc", statements[0]);
+        assertTrue(statements[1], statements[1].startsWith("create table itemset_abc ("));
+    }
+
+    public void testColumnsAreQuoted() {
+        String create = ItemsetDbAdapter.getCreateTableStatements("abc", new String[] {
+                "list_name", "label::English"
+        })[1];
+        assertTrue(create, create.contains("_id integer primary key autoincrement"));
+        assertTrue(create, create.contains("\"list_name\" text"));
+        assertTrue(create, create.contains("\"label::English\" text"));
+        assertTrue(create, create.indexOf("\"list_name\"") < create.indexOf("\"label::English\""));
+    }
+}
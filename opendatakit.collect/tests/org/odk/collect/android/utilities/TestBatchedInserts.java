@@ -0,0 +1,130 @@
+package org.odk.collect.android.utilities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestBatchedInserts extends TestCase {
+
+    // what ItemsetDbAdapter commits at a time
+    private static final int ROWS_PER_TRANSACTION = 1000;
+
+    private Recorder target;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        target = new Recorder();
+    }
+
+    public void testNoRowsStillRecordsInOneTransaction() {
+        load(0).finish();
+        assertEquals(Arrays.asList("begin", "finish", "successful", "end", "close"), target.calls);
+    }
+
+    public void testOneRow() {
+        load(1).finish();
+        assertEquals(Arrays.asList("begin", "insert 0", "finish", "successful", "end", "close"),
+                target.calls);
+    }
+
+    public void testFullBatchIsCommittedBeforeFinishing() {
+        load(ROWS_PER_TRANSACTION).finish();
+        assertEquals(2, target.count("begin"));
+        assertEquals(ROWS_PER_TRANSACTION, target.count("insert"));
+        assertEquals(Arrays.asList("insert " + (ROWS_PER_TRANSACTION - 1), "successful", "end",
+                "begin", "finish", "successful", "end", "close"), target.lastCalls(8));
+    }
+
+    public void testRowAfterFullBatchGoesInLastTransaction() {
+        load(ROWS_PER_TRANSACTION + 1).finish();
+        assertEquals(2, target.count("begin"));
+        assertEquals(ROWS_PER_TRANSACTION + 1, target.count("insert"));
+        assertEquals(Arrays.asList("insert " + (ROWS_PER_TRANSACTION - 1), "successful", "end",
+                "begin", "insert " + ROWS_PER_TRANSACTION, "finish", "successful", "end", "close"),
+                target.lastCalls(9));
+    }
+
+    public void testAbortRollsBackOpenTransaction() {
+        BatchedInserts batches = load(ROWS_PER_TRANSACTION + 1);
+        batches.abort();
+        batches.abort();
+        assertEquals(0, target.count("finish"));
+        assertEquals(Arrays.asList("begin", "insert " + ROWS_PER_TRANSACTION, "end", "close"),
+                target.lastCalls(4));
+    }
+
+    public void testFailedFinishRollsBackAndIsNotEndedTwice() {
+        BatchedInserts batches = load(1);
+        target.failFinish = true;
+        try {
+            batches.finish();
+            fail("finish did not fail");
+        } catch (IllegalStateException expected) {
+        }
+        batches.abort();
+        assertEquals(Arrays.asList("begin", "insert 0", "finish", "end", "close"), target.calls);
+    }
+
+    private BatchedInserts load(int rows) {
+        BatchedInserts batches = new BatchedInserts(target, ROWS_PER_TRANSACTION);
+        for (int i = 0; i < rows; i++) {
+            batches.addRow(new String[] {String.valueOf(i)});
+        }
+        return batches;
+    }
+
+    private static class Recorder implements BatchedInserts.Target {
+        final List<String> calls = new ArrayList<String>();
+        boolean failFinish;
+
+        @Override
+        public void beginTransaction() {
+            calls.add("begin");
+        }
+
+        @Override
+        public void setTransactionSuccessful() {
+            calls.add("successful");
+        }
+
+        @Override
+        public void endTransaction() {
+            calls.add("end");
+        }
+
+        @Override
+        public void insert(String[] row) {
+            calls.add("insert " + row[0]);
+        }
+
+        @Override
+        public void finishRows() {
+            calls.add("finish");
+            if (failFinish) {
+                throw new IllegalStateException("itemsets row not written");
+            }
+        }
+
+        @Override
+        public void close() {
+            calls.add("close");
+        }
+
+        int count(String call) {
+            int count = 0;
+            for (String c : calls) {
+                if (c.equals(call) || c.startsWith(call + " ")) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        List<String> lastCalls(int n) {
+            return calls.subList(calls.size() - n, calls.size());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.odk.collect.android.utilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.services.PrototypeManager;
+import org.javarosa.model.xform.XFormsModule;
+import org.javarosa.xform.util.XFormUtils;
+
+import junit.framework.TestCase;
+
+public class TestFormDefSnapshot extends TestCase {
+
+    private static final long SCHEMA_TAG = FormDefSnapshot.getSchemaTag(new String[] {"org.javarosa.core.model.FormDef"});
+
+    // offsets of the header fields, see the FormDefSnapshot class comment
+    private static final int VERSION_OFFSET = 4;
+    private static final int PAYLOAD_LENGTH_OFFSET = 16;
+    private static final int HEADER_SIZE = 28;
+
+    private File snapshotFile;
+    private FormDef fd;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        registerPrototypes();
+        fd = parseForm(createForm(3, 4));
+        snapshotFile = File.createTempFile("$$$TestFormDefSnapshot", ".formdef");
+        FormDefSnapshot.write(fd, snapshotFile, SCHEMA_TAG);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        snapshotFile.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        FormDef read = FormDefSnapshot.read(snapshotFile, SCHEMA_TAG);
+        assertNotNull(read);
+        assertEquals(fd.getTitle(), read.getTitle());
+        assertEquals(fd.getDeepChildCount(), read.getDeepChildCount());
+        assertFalse(new File(snapshotFile.getPath() + ".tmp").exists());
+    }
+
+    public void testOtherSchemaTagIsRejected() throws Exception {
+        assertNull(FormDefSnapshot.read(snapshotFile, SCHEMA_TAG + 1));
+    }
+
+    public void testWrongMagicIsRejected() throws Exception {
+        overwriteInt(0, FormDefSnapshot.MAGIC + 1);
+        assertNull(FormDefSnapshot.read(snapshotFile, SCHEMA_TAG));
+    }
+
+    public void testOtherVersionIsRejected() throws Exception {
+        overwriteInt(VERSION_OFFSET, FormDefSnapshot.FORMAT_VERSION + 1);
+        assertNull(FormDefSnapshot.read(snapshotFile, SCHEMA_TAG));
+    }
+
+    public void testTruncatedPayloadIsRejected() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+        assertNull(FormDefSnapshot.read(snapshotFile, SCHEMA_TAG));
+    }
+
+    public void testWrongPayloadLengthIsRejected() throws Exception {
+        overwriteInt(PAYLOAD_LENGTH_OFFSET, (int)snapshotFile.length());
+        assertNull(FormDefSnapshot.read(snapshotFile, SCHEMA_TAG));
+    }
+
+    public void testCorruptPayloadIsRejected() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        try {
+            long position = (HEADER_SIZE + file.length()) / 2;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xFF);
+        } finally {
+            file.close();
+        }
+        assertNull(FormDefSnapshot.read(snapshotFile, SCHEMA_TAG));
+    }
+
+    public void testShortFileIsRejected() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        try {
+            file.setLength(HEADER_SIZE - 1);
+        } finally {
+            file.close();
+        }
+        assertNull(FormDefSnapshot.read(snapshotFile, SCHEMA_TAG));
+    }
+
+    public void testFormDefWithoutHeaderIsRejected() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(snapshotFile));
+        try {
+            fd.writeExternal(out);
+        } finally {
+            out.close();
+        }
+        assertNull(FormDefSnapshot.read(snapshotFile, SCHEMA_TAG));
+    }
+
+    public void testSchemaTagFollowsClassList() {
+        String[] classes = {"a.First", "a.Second"};
+        assertEquals(FormDefSnapshot.getSchemaTag(classes), FormDefSnapshot.getSchemaTag(classes.clone()));
+        assertFalse(FormDefSnapshot.getSchemaTag(classes) == FormDefSnapshot.getSchemaTag(new String[] {"a.Second", "a.First"}));
+        assertFalse(FormDefSnapshot.getSchemaTag(classes) == FormDefSnapshot.getSchemaTag(new String[] {"a.FirstSecond"}));
+    }
+
+    private void overwriteInt(int offset, int value) throws Exception {
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        try {
+            file.seek(offset);
+            file.writeInt(value);
+        } finally {
+            file.close();
+        }
+    }
+
+    // the part of FormLoaderTask.initializeJavaRosa these forms need
+    static void registerPrototypes() {
+        PrototypeManager.registerPrototypes(new String[] {
+                "org.javarosa.core.model.FormDef",
+                "org.javarosa.core.model.QuestionDef",
+                "org.javarosa.core.model.GroupDef",
+                "org.javarosa.core.model.instance.FormInstance",
+                "org.javarosa.core.model.data.SelectOneData",
+                "org.javarosa.core.model.data.StringData",
+        });
+        new XFormsModule().registerModule();
+    }
+
+    static FormDef parseForm(String xml) throws Exception {
+        return XFormUtils.getFormFromInputStream(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    /**
+     * @return an XForm with the given number of single select questions, each with its own choices
+     */
+    static String createForm(int questions, int choicesPerQuestion) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">");
+        xml.append("<h:head><h:title>Snapshot</h:title><model><instance><data id=\"snapshot\">");
+        for (int q = 0; q < questions; ++q)
+            xml.append("<q").append(q).append("/>");
+        xml.append("</data></instance>");
+        for (int q = 0; q < questions; ++q)
+            xml.append("<bind nodeset=\"/data/q").append(q).append("\" type=\"select1\"/>");
+        xml.append("</model></h:head><h:body>");
+        for (int q = 0; q < questions; ++q) {
+            xml.append("<select1 ref=\"/data/q").append(q).append("\"><label>Question ").append(q).append("</label>");
+            for (int c = 0; c < choicesPerQuestion; ++c) {
+                xml.append("<item><label>Choice ").append(c).append("</label><value>c").append(c).append("</value></item>");
+            }
+            xml.append("</select1>");
+        }
+        xml.append("</h:body></h:html>");
+        return xml.toString();
+    }
+}
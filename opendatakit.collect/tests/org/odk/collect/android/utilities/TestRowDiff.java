@@ -0,0 +1,180 @@
+package org.odk.collect.android.utilities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestRowDiff extends TestCase {
+
+    // list_name, name, label, as in itemsets.csv; the key is list_name and name
+    private static final int[] KEY_COLUMNS = {
+            0, 1
+    };
+
+    private static final String[][] TABLE = {
+            {"country", "ca", "Canada"},
+            {"country", "mx", "Mexico"},
+            {"country", "us", "United States"},
+    };
+
+    private Recorder target;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        target = new Recorder();
+    }
+
+    public void testSameRowsAreUnchanged() {
+        RowDiff diff = createDiff(RowDiff.ORDER_BY_ROW_ID);
+        assertTrue(addCsvRows(diff, TABLE));
+        diff.deleteUnmatched(target);
+        assertEquals(0, diff.getChangeCount());
+        assertEquals("0 inserted, 0 updated, 0 deleted, 3 unchanged", diff.toString());
+        assertEquals(Collections.emptyList(), target.changes);
+    }
+
+    public void testChangedLabelIsUpdated() {
+        RowDiff diff = createDiff(RowDiff.ORDER_BY_ROW_ID);
+        assertTrue(addCsvRows(diff, new String[][] {
+                TABLE[0], {"country", "mx", "México"}, TABLE[2],
+        }));
+        diff.deleteUnmatched(target);
+        assertEquals(1, diff.getChangeCount());
+        assertEquals(Collections.singletonList("update 2 country,mx,México"), target.changes);
+    }
+
+    public void testRowAddedAtEndIsInserted() {
+        RowDiff diff = createDiff(RowDiff.ORDER_BY_ROW_ID);
+        assertTrue(addCsvRows(diff, new String[][] {
+                TABLE[0], TABLE[1], TABLE[2], {"country", "br", "Brazil"},
+        }));
+        diff.deleteUnmatched(target);
+        assertEquals(Collections.singletonList("insert 3 country,br,Brazil"), target.changes);
+    }
+
+    public void testRemovedRowIsDeleted() {
+        RowDiff diff = createDiff(RowDiff.ORDER_BY_ROW_ID);
+        assertTrue(addCsvRows(diff, new String[][] {
+                TABLE[0], TABLE[2],
+        }));
+        diff.deleteUnmatched(target);
+        assertEquals("0 inserted, 0 updated, 1 deleted, 2 unchanged", diff.toString());
+        assertEquals(Collections.singletonList("delete 2"), target.changes);
+    }
+
+    public void testRowAddedBeforeKeptRowCannotKeepRowIdOrder() {
+        RowDiff diff = createDiff(RowDiff.ORDER_BY_ROW_ID);
+        assertFalse(addCsvRows(diff, new String[][] {
+                TABLE[0], {"country", "br", "Brazil"}, TABLE[1], TABLE[2],
+        }));
+    }
+
+    public void testMovedRowCannotKeepRowIdOrder() {
+        RowDiff diff = createDiff(RowDiff.ORDER_BY_ROW_ID);
+        assertFalse(addCsvRows(diff, new String[][] {
+                TABLE[1], TABLE[0], TABLE[2],
+        }));
+    }
+
+    public void testMovedRowIsUpdatedWhenOrderedByPosition() {
+        RowDiff diff = createDiff(RowDiff.ORDER_BY_POSITION);
+        assertTrue(addCsvRows(diff, new String[][] {
+                TABLE[1], TABLE[0], TABLE[2],
+        }));
+        diff.deleteUnmatched(target);
+        assertEquals(2, diff.getChangeCount());
+        assertEquals(Arrays.asList("update 2 country,mx,Mexico", "update 1 country,ca,Canada"),
+                target.changes);
+    }
+
+    public void testOrderIsIgnoredWhenOrderedByValues() {
+        RowDiff diff = createDiff(RowDiff.ORDER_BY_VALUES);
+        assertTrue(addCsvRows(diff, new String[][] {
+                {"country", "br", "Brazil"}, TABLE[2], TABLE[1], TABLE[0],
+        }));
+        diff.deleteUnmatched(target);
+        assertEquals(Collections.singletonList("insert 0 country,br,Brazil"), target.changes);
+    }
+
+    public void testDuplicateTableKeyIsRefused() {
+        RowDiff diff = new RowDiff(KEY_COLUMNS, RowDiff.ORDER_BY_ROW_ID);
+        assertTrue(diff.addTableRow(1, TABLE[0], 0));
+        assertFalse(diff.addTableRow(2, new String[] {"country", "ca", "Kanada"}, 1));
+    }
+
+    public void testDuplicateCsvKeyIsRefused() {
+        RowDiff diff = createDiff(RowDiff.ORDER_BY_VALUES);
+        assertFalse(addCsvRows(diff, new String[][] {
+                TABLE[0], TABLE[1], TABLE[2], {"country", "us", "USA"},
+        }));
+    }
+
+    public void testNullIsNotEmpty() {
+        RowDiff diff = new RowDiff(KEY_COLUMNS, RowDiff.ORDER_BY_ROW_ID);
+        assertTrue(diff.addTableRow(1, new String[] {"country", "ca", null}, 0));
+        assertTrue(diff.addTableRow(2, new String[] {"country", null, ""}, 1));
+        assertTrue(diff.addTableRow(3, new String[] {"country", "", ""}, 2));
+        assertTrue(diff.addCsvRow(new String[] {"country", "ca", ""}, 0, target));
+        assertTrue(diff.addCsvRow(new String[] {"country", null, ""}, 1, target));
+        assertTrue(diff.addCsvRow(new String[] {"country", "", ""}, 2, target));
+        assertEquals(Collections.singletonList("update 1 country,ca,"), target.changes);
+    }
+
+    public void testValuesAreNotRunTogether() {
+        int[] keyColumns = {
+                0
+        };
+        RowDiff diff = new RowDiff(keyColumns, RowDiff.ORDER_BY_ROW_ID);
+        assertTrue(diff.addTableRow(1, new String[] {"k", "ab", "c"}, 0));
+        assertTrue(diff.addCsvRow(new String[] {"k", "a", "bc"}, 0, target));
+        assertEquals(Collections.singletonList("update 1 k,a,bc"), target.changes);
+    }
+
+    private static RowDiff createDiff(int order) {
+        RowDiff diff = new RowDiff(KEY_COLUMNS, order);
+        for (int i = 0; i < TABLE.length; i++) {
+            assertTrue(diff.addTableRow(i + 1, TABLE[i], i));
+        }
+        return diff;
+    }
+
+    private boolean addCsvRows(RowDiff diff, String[][] rows) {
+        for (int i = 0; i < rows.length; i++) {
+            if (!diff.addCsvRow(rows[i], i, target)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Recorder implements RowDiff.Target {
+        final List<String> changes = new ArrayList<String>();
+
+        @Override
+        public void insert(String[] row, long position) {
+            changes.add("insert " + position + " " + join(row));
+        }
+
+        @Override
+        public void update(long rowId, String[] row, long position) {
+            changes.add("update " + rowId + " " + join(row));
+        }
+
+        @Override
+        public void delete(long rowId) {
+            changes.add("delete " + rowId);
+        }
+
+        private static String join(String[] row) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < row.length; i++) {
+                sb.append(i == 0 ? "" : ",").append(row[i] == null ? "" : row[i]);
+            }
+            return sb.toString();
+        }
+    }
+}